@@ -4,13 +4,134 @@ package encryptdecrypt;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 interface Coder {
     String encrypt(String message, int key);
 
     String decrypt(String message, int key);
+
+    /* In place, on the chars from from to to */
+    void encrypt(char[] data, int from, int to, int key);
+
+    void decrypt(char[] data, int from, int to, int key);
+
+    /* Code text encoded in charset, byte buffer to byte buffer */
+    ByteTransformer encrypter(Charset charset, int key);
+
+    ByteTransformer decrypter(Charset charset, int key);
+}
+
+/* Codes the bytes of a text in some charset from one buffer to another, allocating nothing as it goes.
+ * A call consumes all of in but the start of a char cut off at its end, kept for the next call,
+ * and needs out to have room for maxOutputSize(in.remaining()) bytes; endOfInput says no call follows.
+ * The output is that of decoding the whole text, coding the chars and encoding them back, except that
+ * a transformer that works on bytes directly copies malformed input as it is instead of replacing it. */
+interface ByteTransformer {
+    void transform(ByteBuffer in, ByteBuffer out, boolean endOfInput);
+
+    int maxOutputSize(int inputSize);
+
+    /* Whether every byte in makes one byte out, in its place, so the output can overwrite the input */
+    boolean isLengthPreserving();
+}
+
+interface CharsConverter {
+    void convert(char[] data, int from, int to);
+}
+
+/* Codes bytes by decoding them to chars, converting those and encoding them again, through buffers it keeps */
+class TranscodingTransformer implements ByteTransformer {
+    private static final int CHARS_SIZE = 1 << 13;
+    /* Bytes of a char cut off at the end of the last call, and a char waiting for the other half of its pair */
+    private static final int CARRIED = 8;
+
+    private final CharsetDecoder decoder;
+    private final CharsetEncoder encoder;
+    private final CharsConverter converter;
+    private final CharBuffer chars = CharBuffer.allocate(CHARS_SIZE);
+
+    TranscodingTransformer(Charset charset, CharsConverter converter) {
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.converter = converter;
+    }
+
+    @Override
+    public void transform(ByteBuffer in, ByteBuffer out, boolean endOfInput) {
+        CoderResult decoded;
+        do {
+            int converted = chars.position();
+            decoded = decoder.decode(in, chars, endOfInput);
+            converter.convert(chars.array(), converted, chars.position());
+            encode(out, false);
+        } while (decoded.isOverflow());
+        if (endOfInput) {
+            int converted = chars.position();
+            decoder.flush(chars);
+            converter.convert(chars.array(), converted, chars.position());
+            encode(out, true);
+            if (encoder.flush(out).isOverflow()) {
+                throw new BufferOverflowException();
+            }
+            decoder.reset();
+            encoder.reset();
+        }
+    }
+
+    private void encode(ByteBuffer out, boolean endOfInput) {
+        chars.flip();
+        CoderResult encoded = encoder.encode(chars, out, endOfInput);
+        chars.compact();
+        if (encoded.isOverflow()) {
+            throw new BufferOverflowException();
+        }
+    }
+
+    @Override
+    public int maxOutputSize(int inputSize) {
+        return (int) Math.ceil((inputSize + CARRIED) * (double) decoder.maxCharsPerByte()
+                * encoder.maxBytesPerChar());
+    }
+
+    @Override
+    public boolean isLengthPreserving() {
+        return false;
+    }
 }
 
 class CoderStore {
@@ -30,9 +151,7 @@ class UnicodeCoder implements Coder {
     @Override
     public String encrypt(String message, int key) {
         char[] chars = message.toCharArray();
-        for (int i = 0; i < chars.length; i++) {
-            chars[i] += key;
-        }
+        encrypt(chars, 0, chars.length, key);
         return new String(chars);
     }
 
@@ -40,13 +159,213 @@ class UnicodeCoder implements Coder {
     public String decrypt(String message, int key) {
         return encrypt(message, -key);
     }
+
+    @Override
+    public void encrypt(char[] chars, int from, int to, int key) {
+        for (int i = from; i < to; i++) {
+            chars[i] += key;
+        }
+    }
+
+    @Override
+    public void decrypt(char[] chars, int from, int to, int key) {
+        encrypt(chars, from, to, -key);
+    }
+
+    /* A shifted char may take other bytes than the char did, in any charset, so it always transcodes */
+    @Override
+    public ByteTransformer encrypter(Charset charset, int key) {
+        return new TranscodingTransformer(charset, (data, from, to) -> encrypt(data, from, to, key));
+    }
+
+    @Override
+    public ByteTransformer decrypter(Charset charset, int key) {
+        return encrypter(charset, -key);
+    }
 }
 
 class ShiftCoder implements Coder {
+    /* What every char below 128 and every byte become, for each of the 26 keys */
+    private static final char[][] CHAR_TABLES = new char[26][128];
+    private static final byte[][] BYTE_TABLES = new byte[26][256];
+
+    /* Charsets where the latin letters are the bytes of their ASCII codes and no other char has those bytes */
+    private static final Set<Charset> ASCII_COMPATIBLE = Set.of(
+            StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, StandardCharsets.US_ASCII);
+
+    static {
+        for (int key = 0; key < 26; key++) {
+            for (int c = 0; c < 256; c++) {
+                char shifted = shift((char) c, key);
+                if (c < 128) CHAR_TABLES[key][c] = shifted;
+                BYTE_TABLES[key][c] = (byte) shifted;
+            }
+        }
+    }
+
     @Override
     public String encrypt(String message, int key) {
-        key %= 26;
         char[] data = message.toCharArray();
+        encrypt(data, 0, data.length, key);
+        return new String(data);
+    }
+
+    @Override
+    public String decrypt(String message, int key) {
+        return encrypt(message, -key);
+    }
+
+    static char shift(char c, int key) {
+        if ('a' <= c && c <= 'z') {
+            return (char) ((c - 'a' + key + 26) % 26 + 'a');
+        } else if ('A' <= c && c <= 'Z') {
+            return (char) ((c - 'A' + key + 26) % 26 + 'A');
+        }
+        return c;
+    }
+
+    /* The key as a shift forward, from 0 to 25 */
+    static int forward(int key) {
+        return (key % 26 + 26) % 26;
+    }
+
+    @Override
+    public void encrypt(char[] data, int from, int to, int key) {
+        char[] table = CHAR_TABLES[forward(key)];
+        for (int i = from; i < to; i++) {
+            char c = data[i];
+            if (c < 128) {
+                data[i] = table[c];
+            }
+        }
+    }
+
+    @Override
+    public void decrypt(char[] data, int from, int to, int key) {
+        encrypt(data, from, to, -key);
+    }
+
+    @Override
+    public ByteTransformer encrypter(Charset charset, int key) {
+        return ASCII_COMPATIBLE.contains(charset)
+                ? new ShiftBytes(key, true)
+                : new TranscodingTransformer(charset, (data, from, to) -> encrypt(data, from, to, key));
+    }
+
+    @Override
+    public ByteTransformer decrypter(Charset charset, int key) {
+        return encrypter(charset, -key);
+    }
+
+    /* Shifts the letters among the bytes of an ASCII compatible text, leaving all other bytes alone.
+     * Looks every byte up in the table of the key or, with lanes, shifts eight bytes at a time in a long
+     * and only looks up the ones left over. */
+    static class ShiftBytes implements ByteTransformer {
+        private static final long HIGH_BITS = 0x8080808080808080L;
+        private static final long LOW_BITS = 0x0101010101010101L;
+        /* Longs of a buffer in the order of the machine, whatever the order of the buffer */
+        private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+                ByteOrder.nativeOrder());
+
+        private final int key;
+        private final byte[] table;
+        private final boolean lanes;
+
+        ShiftBytes(int key, boolean lanes) {
+            this.key = forward(key);
+            this.table = BYTE_TABLES[this.key];
+            this.lanes = lanes;
+        }
+
+        @Override
+        public void transform(ByteBuffer in, ByteBuffer out, boolean endOfInput) {
+            int from = in.position();
+            int to = from + in.remaining();
+            if (out.remaining() < to - from) {
+                throw new BufferOverflowException();
+            }
+            int i = from;
+            int at = out.position();
+            if (lanes) {
+                for (; i + Long.BYTES <= to; i += Long.BYTES, at += Long.BYTES) {
+                    LONGS.set(out, at, shift((long) LONGS.get(in, i), key));
+                }
+            }
+            for (; i < to; i++) {
+                out.put(at++, table[in.get(i) & 0xFF]);
+            }
+            in.position(to);
+            out.position(at);
+        }
+
+        /* Shifts the letters among the eight bytes of lanes forward by key, from 0 to 25. Lanes of
+         * bytes from 128 on are left alone; in the others, v >= c is the high bit of (v | 0x80) - c,
+         * with no borrow from the next lane. Letters get key added, those past z or Z then lose 26. */
+        static long shift(long lanes, int key) {
+            long ascii = ~lanes & HIGH_BITS;
+            long lower = lanes | 0x20 * LOW_BITS;
+            long letters = ascii
+                    & ((lower | HIGH_BITS) - 'a' * LOW_BITS)
+                    & ~((lower | HIGH_BITS) - ('z' + 1) * LOW_BITS);
+            long wrapping = letters & ((lower | HIGH_BITS) - ('z' + 1 - key) * LOW_BITS);
+            return lanes + (letters >>> 7) * key - (wrapping >>> 7) * 26;
+        }
+
+        @Override
+        public int maxOutputSize(int inputSize) {
+            return inputSize;
+        }
+
+        @Override
+        public boolean isLengthPreserving() {
+            return true;
+        }
+    }
+}
+
+/* Times the coding kernels on a generated text, mostly ASCII with some two and three byte chars.
+ * The modulo loop is the char loop ShiftCoder had before its tables, kept as the baseline. */
+class Bench {
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 10;
+
+    interface Kernel {
+        void run(byte[] text, char[] chars, ByteBuffer in, ByteBuffer out);
+    }
+
+    static void run(int megabytes) {
+        byte[] text = text(megabytes << 20);
+        char[] chars = new String(text, StandardCharsets.UTF_8).toCharArray();
+        ByteBuffer in = ByteBuffer.wrap(text);
+        ShiftCoder shift = new ShiftCoder();
+        UnicodeCoder unicode = new UnicodeCoder();
+        ByteTransformer transcoding = unicode.encrypter(StandardCharsets.UTF_8, 7);
+        ByteBuffer out = ByteBuffer.allocate(transcoding.maxOutputSize(text.length));
+        Map<String, Kernel> kernels = new LinkedHashMap<>();
+        kernels.put("shift chars, modulo loop", (t, c, i, o) -> moduloShift(c, 7));
+        kernels.put("shift chars, table", (t, c, i, o) -> shift.encrypt(c, 0, c.length, 7));
+        kernels.put("shift bytes, table", (t, c, i, o) -> new ShiftCoder.ShiftBytes(7, false).transform(i, o, true));
+        kernels.put("shift bytes, lanes", (t, c, i, o) -> new ShiftCoder.ShiftBytes(7, true).transform(i, o, true));
+        kernels.put("unicode chars", (t, c, i, o) -> unicode.encrypt(c, 0, c.length, 7));
+        kernels.put("unicode bytes, transcoding", (t, c, i, o) -> transcoding.transform(i, o, true));
+        for (Map.Entry<String, Kernel> kernel : kernels.entrySet()) {
+            long nanos = 0;
+            for (int i = -WARMUP; i < ITERATIONS; i++) {
+                in.clear();
+                out.clear();
+                long start = System.nanoTime();
+                kernel.getValue().run(text, chars, in, out);
+                if (i >= 0) {
+                    nanos += System.nanoTime() - start;
+                }
+            }
+            System.out.format(Locale.ROOT, "%-28s %10.1f MB/s%n",
+                    kernel.getKey(), (double) text.length * ITERATIONS / nanos * 1e3);
+        }
+    }
+
+    private static void moduloShift(char[] data, int key) {
+        key %= 26;
         for (int i = 0; i < data.length; i++) {
             char c = data[i];
             if ('a' <= c && c <= 'z') {
@@ -55,16 +374,25 @@ class ShiftCoder implements Coder {
                 data[i] = (char) ((c - 'A' + key + 26) % 26 + 'A');
             }
         }
-        return new String(data);
     }
 
-    @Override
-    public String decrypt(String message, int key) {
-        return encrypt(message, -key);
+    private static byte[] text(int size) {
+        String[] words = {"Lorem", "ipsum", "dolor", "sit", "amet,", "consectetur", "adipiscing", "elit.",
+                "Za\u017c\u00f3\u0142\u0107", "g\u0119\u015bl\u0105", "ja\u017a\u0144", "na\u00efve", "caf\u00e9", "\u20ac10", "\n"};
+        Random random = new Random(42);
+        ByteBuffer text = ByteBuffer.allocate(size);
+        while (text.hasRemaining()) {
+            byte[] word = (words[random.nextInt(words.length)] + " ").getBytes(StandardCharsets.UTF_8);
+            text.put(word, 0, Math.min(word.length, text.remaining()));
+        }
+        return text.array();
     }
 }
 
 class IoUtil {
+    static final int BUFFER_SIZE = 1 << 16;
+    static final long MAP_SIZE = 1 << 26;
+
     static String readFileAsString(String fileName) throws IOException {
         return new String(Files.readAllBytes(Paths.get(fileName)));
     }
@@ -74,6 +402,257 @@ class IoUtil {
             fw.write(data);
         }
     }
+
+    /* Streams a file through the transformer into another one, a buffer at a time, so it takes the same memory
+     * whatever the size of the file */
+    static void transformFile(String inFileName, String outFileName, ByteTransformer transformer) throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer out = ByteBuffer.allocate(transformer.maxOutputSize(BUFFER_SIZE));
+        try (FileChannel input = FileChannel.open(Paths.get(inFileName), StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(Paths.get(outFileName), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            boolean endOfInput = false;
+            while (!endOfInput) {
+                endOfInput = input.read(in) < 0;
+                in.flip();
+                transformer.transform(in, out, endOfInput);
+                in.compact();
+                write(out, output);
+            }
+        }
+    }
+
+    private static void write(ByteBuffer bytes, FileChannel channel) throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    /* Runs a length preserving transformer over the file mapped into memory a region at a time, overwriting
+     * each byte with its coded one in place. A failure leaves the file coded up to where it happened. */
+    static void transformInPlace(String fileName, ByteTransformer transformer) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_SIZE) {
+                long length = Math.min(MAP_SIZE, size - position);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, position, length);
+                transformer.transform(region, region.duplicate(), position + length == size);
+            }
+        }
+    }
+
+    /* An empty file next to the given one, with its permissions, to be moved over it once written */
+    static Path createSibling(Path file) throws IOException {
+        Path sibling = Files.createTempFile(file.getParent(), "." + file.getFileName(), ".tmp");
+        try {
+            Files.setPosixFilePermissions(sibling, Files.getPosixFilePermissions(file));
+        } catch (UnsupportedOperationException e) {
+            /* Not a POSIX file system, it keeps the permissions it got */
+        }
+        return sibling;
+    }
+
+    /* Moves the sibling over the file in one step, so the file is either all old or all new */
+    static void replace(Path sibling, Path file) throws IOException {
+        Files.move(sibling, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static boolean isSameFile(String fileName, String otherFileName) throws IOException {
+        Path file = Paths.get(fileName);
+        Path other = Paths.get(otherFileName);
+        return Files.exists(other) && Files.isSameFile(file, other);
+    }
+}
+
+/* Codes a file into another on the fork/join pool, a batch of chunks at a time, each chunk in buffers of its own
+ * slot of the batch. A length preserving transformer codes every byte on its own, so chunks are cut anywhere
+ * and each is written at its own offset as soon as it is coded. Any other one transcodes, and coded chars
+ * on both sides of a cut could make a surrogate pair, so chunks are cut between two chars that come out
+ * the same coded together as coded apart; the chunks of a batch are written in order once they are all coded.
+ * Only for charsets where the first byte of a char can be told from the others. */
+class ParallelFileTransformer {
+    static final int CHUNK_SIZE = 1 << 20;
+
+    private static final Set<Charset> CUTTABLE = Set.of(
+            StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, StandardCharsets.US_ASCII);
+
+    static boolean supports(Charset charset) {
+        return CUTTABLE.contains(charset);
+    }
+
+    static void transformFile(String inFileName, String outFileName, Charset charset,
+                              Supplier<ByteTransformer> transformers) throws IOException {
+        int batch = 2 * ForkJoinPool.commonPool().getParallelism();
+        ByteTransformer[] slots = new ByteTransformer[batch];
+        ByteBuffer[] ins = new ByteBuffer[batch];
+        ByteBuffer[] outs = new ByteBuffer[batch];
+        /* The first one up front, so a transformer that can't be made fails before the output is touched */
+        slots[0] = transformers.get();
+        try (FileChannel input = FileChannel.open(Paths.get(inFileName), StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(Paths.get(outFileName), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long[] cuts = cuts(input, charset, slots[0]);
+            List<Callable<Void>> tasks = new ArrayList<>(batch);
+            for (int first = 0; first < cuts.length - 1; first += batch) {
+                tasks.clear();
+                for (int chunk = first; chunk < Math.min(first + batch, cuts.length - 1); chunk++) {
+                    int slot = chunk - first;
+                    long from = cuts[chunk];
+                    long to = cuts[chunk + 1];
+                    if (slots[slot] == null) {
+                        slots[slot] = transformers.get();
+                    }
+                    /* Chunks of a transcoding transformer can be longer, when no cut is found in time */
+                    if (ins[slot] == null || ins[slot].capacity() < to - from) {
+                        int length = (int) Math.max(CHUNK_SIZE, to - from);
+                        ins[slot] = ByteBuffer.allocate(length);
+                        outs[slot] = ByteBuffer.allocate(slots[slot].maxOutputSize(length));
+                    }
+                    tasks.add(() -> {
+                        transform(input, from, to, slots[slot], ins[slot], outs[slot]);
+                        if (slots[slot].isLengthPreserving()) {
+                            write(outs[slot], output, from);
+                        }
+                        return null;
+                    });
+                }
+                for (Future<Void> done : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                    join(done);
+                }
+                for (int slot = 0; slot < tasks.size(); slot++) {
+                    if (!slots[slot].isLengthPreserving()) {
+                        write(outs[slot], output, output.size());
+                    }
+                }
+            }
+        }
+    }
+
+    /* Chunk bounds: 0, the first place to cut at or after every CHUNK_SIZE bytes from the last cut, the file size */
+    private static long[] cuts(FileChannel input, Charset charset, ByteTransformer transformer) throws IOException {
+        long size = input.size();
+        List<Long> cuts = new ArrayList<>();
+        cuts.add(0L);
+        if (transformer.isLengthPreserving()) {
+            for (long cut = CHUNK_SIZE; cut < size; cut += CHUNK_SIZE) {
+                cuts.add(cut);
+            }
+        } else {
+            Separator separator = new Separator(charset, transformer);
+            long cut = separator.next(input, CHUNK_SIZE);
+            while (cut < size) {
+                cuts.add(cut);
+                cut = separator.next(input, cut + CHUNK_SIZE);
+            }
+        }
+        cuts.add(size);
+        return cuts.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /* Finds where two chars come out the same coded together as coded one at a time */
+    private static class Separator {
+        /* The most bytes of a char, in the charsets supported */
+        private static final int MAX_CHAR = 4;
+
+        private final boolean utf8;
+        private final ByteTransformer transformer;
+        private final ByteBuffer window = ByteBuffer.allocate(IoUtil.BUFFER_SIZE);
+        private final ByteBuffer in = ByteBuffer.allocate(2 * MAX_CHAR);
+        private final ByteBuffer together;
+        private final ByteBuffer apart;
+
+        Separator(Charset charset, ByteTransformer transformer) {
+            this.utf8 = StandardCharsets.UTF_8.equals(charset);
+            this.transformer = transformer;
+            this.together = ByteBuffer.allocate(transformer.maxOutputSize(2 * MAX_CHAR));
+            this.apart = ByteBuffer.allocate(2 * transformer.maxOutputSize(MAX_CHAR));
+        }
+
+        /* The first char start at or after from that separates, or the size if there is none */
+        long next(FileChannel input, long from) throws IOException {
+            long size = input.size();
+            while (from < size) {
+                long position = Math.max(0, from - MAX_CHAR);
+                window.clear();
+                input.read(window, position);
+                int length = window.position();
+                int limit = position + length >= size ? length : length - MAX_CHAR;
+                for (int i = (int) (from - position); i < limit; i++) {
+                    if (i > 0 && isCharStart(window.get(i))) {
+                        int start = i - 1;
+                        while (start > 0 && i - start < MAX_CHAR && !isCharStart(window.get(start))) {
+                            start--;
+                        }
+                        int end = i + 1;
+                        while (end < length && end - i < MAX_CHAR && !isCharStart(window.get(end))) {
+                            end++;
+                        }
+                        if (separable(start, i, end)) {
+                            return position + i;
+                        }
+                    }
+                }
+                from = position + limit;
+            }
+            return size;
+        }
+
+        private boolean isCharStart(byte b) {
+            return !utf8 || (b & 0xC0) != 0x80;
+        }
+
+        private boolean separable(int start, int cut, int end) {
+            together.clear();
+            transformer.transform(fill(start, end), together, true);
+            apart.clear();
+            transformer.transform(fill(start, cut), apart, true);
+            transformer.transform(fill(cut, end), apart, true);
+            return together.flip().equals(apart.flip());
+        }
+
+        private ByteBuffer fill(int from, int to) {
+            in.clear();
+            for (int i = from; i < to; i++) {
+                in.put(window.get(i));
+            }
+            return in.flip();
+        }
+    }
+
+    private static void transform(FileChannel input, long from, long to, ByteTransformer transformer,
+                                  ByteBuffer in, ByteBuffer out) throws IOException {
+        in.clear();
+        in.limit((int) (to - from));
+        while (in.hasRemaining() && input.read(in, from + in.position()) >= 0) {
+        }
+        in.flip();
+        out.clear();
+        transformer.transform(in, out, true);
+        out.flip();
+    }
+
+    private static void write(ByteBuffer bytes, FileChannel output, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            position += output.write(bytes, position);
+        }
+    }
+
+    private static void join(Future<Void> done) throws IOException {
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
 }
 
 abstract class Template {
@@ -85,6 +664,10 @@ abstract class Template {
 
     void execute(String[] args) throws Exception {
         parseArgs(args);
+        if (canStream()) {
+            streamMessage();
+            return;
+        }
         readMessage();
         convertMessage();
         writeMessage();
@@ -92,6 +675,23 @@ abstract class Template {
 
     abstract void parseArgs(String[] args) throws Exception;
 
+    /* Whether the message can go from its source to its destination a part at a time */
+    abstract boolean canStream() throws Exception;
+
+    abstract void streamMessage() throws Exception;
+
+    /* The coder as a transformer of the bytes of text in charset */
+    ByteTransformer transformer(Charset charset) {
+        switch (mode) {
+            case "enc":
+                return coder.encrypter(charset, key);
+            case "dec":
+                return coder.decrypter(charset, key);
+            default:
+                throw new IllegalArgumentException("Unknown mode : " + mode);
+        }
+    }
+
     abstract void readMessage() throws Exception;
 
     abstract void writeMessage() throws Exception;
@@ -113,8 +713,10 @@ abstract class Template {
 class Worker extends Template {
     String inFilename;
     String outFilename;
+    boolean parallel;
+    boolean safe;
 
-    private static int findPos(String[] args, String option) {
+    static int findPos(String[] args, String option) {
         for (int i = 0; i < args.length; i++) {
             if (option.equals(args[i])) return i;
         }
@@ -141,6 +743,49 @@ class Worker extends Template {
         int ixAlg = findPos(args, "-alg");
         String alg = ixAlg > -1 ? args[ixAlg + 1] : "shift";
         coder = CoderStore.getCoder(alg);
+
+        parallel = findPos(args, "-parallel") > -1;
+
+        safe = findPos(args, "-safe") > -1;
+    }
+
+    @Override
+    boolean canStream() {
+        return message == null && inFilename != null && outFilename != null;
+    }
+
+    /* Text is read and written in the default charset, as readFileAsString and writeToFile do.
+     * A file coded onto itself is coded in place when every byte makes one byte, unless -safe asks
+     * to write it next to itself and move it over in one step, as it is for any other coding. */
+    @Override
+    void streamMessage() throws IOException {
+        Charset charset = Charset.defaultCharset();
+        if (!IoUtil.isSameFile(inFilename, outFilename)) {
+            transformFile(inFilename, outFilename, charset);
+            return;
+        }
+        ByteTransformer transformer = transformer(charset);
+        if (transformer.isLengthPreserving() && !safe) {
+            IoUtil.transformInPlace(inFilename, transformer);
+            return;
+        }
+        /* The file itself, not a link to it, is what gets replaced */
+        Path file = Paths.get(outFilename).toRealPath();
+        Path sibling = IoUtil.createSibling(file);
+        try {
+            transformFile(inFilename, sibling.toString(), charset);
+            IoUtil.replace(sibling, file);
+        } finally {
+            Files.deleteIfExists(sibling);
+        }
+    }
+
+    private void transformFile(String inFileName, String outFileName, Charset charset) throws IOException {
+        if (parallel && ParallelFileTransformer.supports(charset)) {
+            ParallelFileTransformer.transformFile(inFileName, outFileName, charset, () -> transformer(charset));
+        } else {
+            IoUtil.transformFile(inFileName, outFileName, transformer(charset));
+        }
     }
 
     @Override
@@ -166,8 +811,14 @@ class Worker extends Template {
 
 public class Main {
 
+    /* -bench megabytes times the coding kernels instead of coding anything */
     public static void main(String[] args) {
         try {
+            int ixBench = Worker.findPos(args, "-bench");
+            if (ixBench > -1) {
+                Bench.run(Integer.parseInt(args[ixBench + 1]));
+                return;
+            }
             Worker worker = new Worker();
             worker.execute(args);
         } catch (Exception e) {
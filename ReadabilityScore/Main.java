@@ -10,45 +10,830 @@
 
 package readability;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+/* Counts words, sentences, characters, syllables and polysyllables in one pass over the text,
+ * char by char and without allocating. The counts are those of the regex splits they replace:
+ * words and syllables of text.split("[-.,;!?]?\\s+"), sentences of text.split("[.!?]+\\s*"),
+ * polysyllables of text.split("\\s+") and characters of text.replaceAll("\\s", "").
+ * A split drops its trailing empty tokens, so empty tokens are only counted once a non-empty one follows. */
+final class TextStats {
+    private static final int TEXT = 0;
+    private static final int TERMINATORS = 1;
+    private static final int SPACES = 2;
+
+    /* Kinds of chars, as bits of the entries of KINDS; VOWEL and E are those of the lowercase char */
+    private static final int SPACE = 1;
+    private static final int PUNCTUATION = 2;
+    private static final int TERMINATOR = 4;
+    private static final int VOWEL = 8;
+    private static final int E = 16;
+    private static final int DOTTED_I = 32;
+
+    /* The kind of every char, looked up once per char instead of a chain of comparisons and a toLowerCase */
+    private static final byte[] KINDS = new byte[Character.MAX_VALUE + 1];
+
+    static {
+        for (char c : " \t\n\u000B\f\r".toCharArray()) KINDS[c] |= SPACE;
+        for (char c : "-.,;!?".toCharArray()) KINDS[c] |= PUNCTUATION;
+        for (char c : ".!?".toCharArray()) KINDS[c] |= TERMINATOR;
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            char lower = Character.toLowerCase((char) c);
+            if ("aeiouy".indexOf(lower) > -1) KINDS[c] |= VOWEL;
+            if (lower == 'e') KINDS[c] |= E;
+        }
+        /* The one char String.toLowerCase makes two of: a dotted "i" */
+        KINDS['\u0130'] = DOTTED_I;
+    }
+
+    long words;
+    long sentences;
+    long characters;
+    long syllables;
+    long polysyllables;
+
+    private boolean empty = true;
+
+    private final Word word = new Word();
+    private boolean inWordDelimiter;
+    private boolean heldPunctuation;
+    private long pendingWords;
+
+    private int sentencePart = TEXT;
+    private boolean sentenceStarted;
+    private long pendingSentences;
+
+    private final Word spaceDelimited = new Word();
+
+    /* Run as each sentence but the first starts, before any of its chars is counted, if not null */
+    Runnable sentenceListener;
+
+    /* Syllables of a token as the old countVowelsWord counted them, fed one char at a time */
+    private static final class Word {
+        boolean started;
+        int vowelGroups;
+        int vowelRun;
+        boolean endsWithE;
+
+        void add(int kind) {
+            if ((kind & DOTTED_I) != 0) {
+                add(VOWEL);
+                add(0);
+                return;
+            }
+            if ((kind & VOWEL) != 0) {
+                if (vowelRun == 0) vowelGroups++;
+                vowelRun++;
+            } else {
+                vowelRun = 0;
+            }
+            endsWithE = (kind & E) != 0;
+            started = true;
+        }
+
+        /* A final "e" is silent, so a vowel group made of it alone does not count */
+        int syllables() {
+            return Math.max(1, vowelGroups - (endsWithE && vowelRun == 1 ? 1 : 0));
+        }
+
+        void reset() {
+            started = false;
+            vowelGroups = 0;
+            vowelRun = 0;
+            endsWithE = false;
+        }
+
+        void copy(Word other) {
+            started = other.started;
+            vowelGroups = other.vowelGroups;
+            vowelRun = other.vowelRun;
+            endsWithE = other.endsWithE;
+        }
+
+        boolean same(Word other) {
+            return started == other.started && vowelGroups == other.vowelGroups
+                    && vowelRun == other.vowelRun && endsWithE == other.endsWithE;
+        }
+    }
+
+    /* A scanner in the state a scan of any text is in right after a space that follows a plain char:
+     * between words, inside a started sentence and with no empty tokens pending */
+    static TextStats afterWord() {
+        TextStats stats = new TextStats();
+        stats.empty = false;
+        stats.inWordDelimiter = true;
+        stats.sentenceStarted = true;
+        return stats;
+    }
+
+    /* A scanner in the state this one is in, with nothing counted yet */
+    TextStats copyState() {
+        TextStats copy = new TextStats();
+        copy.empty = empty;
+        copy.word.copy(word);
+        copy.inWordDelimiter = inWordDelimiter;
+        copy.heldPunctuation = heldPunctuation;
+        copy.pendingWords = pendingWords;
+        copy.sentencePart = sentencePart;
+        copy.sentenceStarted = sentenceStarted;
+        copy.pendingSentences = pendingSentences;
+        copy.spaceDelimited.copy(spaceDelimited);
+        return copy;
+    }
+
+    /* Whether the rest of a text would be counted the same by both scanners */
+    boolean sameState(TextStats other) {
+        return empty == other.empty && word.same(other.word)
+                && inWordDelimiter == other.inWordDelimiter && heldPunctuation == other.heldPunctuation
+                && pendingWords == other.pendingWords && sentencePart == other.sentencePart
+                && sentenceStarted == other.sentenceStarted && pendingSentences == other.pendingSentences
+                && spaceDelimited.same(other.spaceDelimited);
+    }
+
+    /* Adds the counts of a scan of the text that follows, once it is finished */
+    void add(TextStats other) {
+        words += other.words;
+        sentences += other.sentences;
+        characters += other.characters;
+        syllables += other.syllables;
+        polysyllables += other.polysyllables;
+    }
+
+    void subtract(TextStats other) {
+        words -= other.words;
+        sentences -= other.sentences;
+        characters -= other.characters;
+        syllables -= other.syllables;
+        polysyllables -= other.polysyllables;
+    }
+
+    void accept(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            accept(text.charAt(i));
+        }
+    }
+
+    void accept(char[] chars, int from, int to) {
+        for (int i = from; i < to; i++) {
+            accept(chars[i]);
+        }
+    }
+
+    void accept(char c) {
+        int kind = KINDS[c];
+        empty = false;
+        acceptSentenceChar(kind);
+        if ((kind & SPACE) != 0) {
+            acceptWordSpace();
+            endSpaceDelimited();
+        } else {
+            characters++;
+            acceptWordChar(kind);
+            spaceDelimited.add(kind);
+        }
+    }
+
+    /* Punctuation right before a space starts the word delimiter */
+    private void acceptWordSpace() {
+        heldPunctuation = false;
+        if (!inWordDelimiter) {
+            endWord();
+            inWordDelimiter = true;
+        }
+    }
+
+    /* Punctuation is held until the next char tells whether it belongs to the word */
+    private void acceptWordChar(int kind) {
+        inWordDelimiter = false;
+        if (heldPunctuation) {
+            addToWord(PUNCTUATION);
+            heldPunctuation = false;
+        }
+        if ((kind & PUNCTUATION) != 0) {
+            heldPunctuation = true;
+        } else {
+            addToWord(kind);
+        }
+    }
+
+    /* Punctuation only counts as a non-vowel in a word, so a held one is added as that */
+    private void addToWord(int kind) {
+        if (!word.started) {
+            words += pendingWords;
+            syllables += pendingWords;
+            pendingWords = 0;
+        }
+        word.add(kind);
+    }
+
+    private void endWord() {
+        if (word.started) {
+            words++;
+            syllables += word.syllables();
+            word.reset();
+        } else {
+            pendingWords++;
+        }
+    }
+
+    private void endSpaceDelimited() {
+        if (spaceDelimited.started) {
+            if (spaceDelimited.syllables() > 2) polysyllables++;
+            spaceDelimited.reset();
+        }
+    }
+
+    private void acceptSentenceChar(int kind) {
+        if ((kind & TERMINATOR) != 0) {
+            if (sentencePart != TERMINATORS) {
+                if (sentenceStarted) {
+                    sentences++;
+                    sentenceStarted = false;
+                } else {
+                    pendingSentences++;
+                }
+                sentencePart = TERMINATORS;
+            }
+        } else if ((kind & SPACE) != 0 && sentencePart != TEXT) {
+            sentencePart = SPACES;
+        } else {
+            sentencePart = TEXT;
+            if (!sentenceStarted) {
+                sentences += pendingSentences;
+                pendingSentences = 0;
+                sentenceStarted = true;
+                if (sentenceListener != null && sentences > 0) {
+                    sentenceListener.run();
+                }
+            }
+        }
+    }
+
+    /* Counts the tokens still open at the end of the text, the text of one empty token if there was none */
+    TextStats finish() {
+        if (empty) {
+            words = 1;
+            syllables = 1;
+            sentences = 1;
+            return this;
+        }
+        if (heldPunctuation) {
+            addToWord(PUNCTUATION);
+            heldPunctuation = false;
+        }
+        if (word.started) {
+            endWord();
+        }
+        endSpaceDelimited();
+        if (sentenceStarted) {
+            sentences++;
+            sentenceStarted = false;
+        }
+        return this;
+    }
+
+    /* The chars of the regex \\s */
+    static boolean isSpace(char c) {
+        return (KINDS[c] & SPACE) != 0;
+    }
+
+    static boolean isPunctuation(char c) {
+        return (KINDS[c] & PUNCTUATION) != 0;
+    }
+}
+
+/* Feeds a file to TextStats through fixed-size buffers, so the text is never held in memory whole.
+ * Decodes like new String(bytes) does: in the default charset, replacing malformed input. */
+final class TextReader {
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /* Echoes the decoded text to echo as it goes, unless it is null */
+    static TextStats scan(Path file, Appendable echo) throws IOException {
+        return scan(file, new TextStats(), echo);
+    }
+
+    static TextStats scan(Path file, TextStats stats, Appendable echo) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            scan(channel, 0, Long.MAX_VALUE, stats, echo);
+        }
+        return stats.finish();
+    }
+
+    /* Decodes the bytes from the position from up to to or the end of the file, whichever comes first,
+     * into stats and echo, either of which may be null. Reads at explicit positions, so concurrent scans
+     * may share the channel. */
+    static void scan(FileChannel channel, long from, long to,
+                     TextStats stats, Appendable echo) throws IOException {
+        CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        long position = from;
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            bytes.limit((int) Math.min(bytes.capacity(), bytes.position() + (to - position)));
+            int read = channel.read(bytes, position);
+            if (read > 0) {
+                position += read;
+            }
+            endOfInput = read < 0 || position == to;
+            bytes.flip();
+            CoderResult result;
+            do {
+                result = decoder.decode(bytes, chars, endOfInput);
+                drain(chars, stats, echo);
+            } while (result.isOverflow());
+            bytes.compact();
+        }
+        while (decoder.flush(chars).isOverflow()) {
+            drain(chars, stats, echo);
+        }
+        drain(chars, stats, echo);
+    }
+
+    private static void drain(CharBuffer chars, TextStats stats, Appendable echo) throws IOException {
+        chars.flip();
+        if (stats != null) {
+            stats.accept(chars.array(), 0, chars.limit());
+        }
+        if (echo != null) {
+            echo.append(chars);
+        }
+        chars.clear();
+    }
+}
+
+/* Counts a file in chunks on the fork/join pool. A chunk starts right after a space that follows
+ * a plain ASCII char, where any scan is in the state of TextStats.afterWord, so each chunk is counted
+ * on its own from that state and the counts of the chunks add up to those of one sequential scan.
+ * Only works in charsets where ASCII bytes are always the chars they stand for. */
+final class ParallelTextReader {
+    static final int CHUNK_SIZE = 1 << 22;
+
+    private static final Set<Charset> SUPPORTED = Set.of(
+            StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, StandardCharsets.US_ASCII);
+
+    static boolean supports(Charset charset) {
+        return SUPPORTED.contains(charset);
+    }
+
+    /* Echoes the text to echo, unless it is null, while the pool counts */
+    static TextStats scan(Path file, Appendable echo) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] cuts = cuts(channel);
+            ForkJoinTask<TextStats> counting = ForkJoinPool.commonPool()
+                    .submit(new ChunkTask(channel, cuts, 0, cuts.length - 1));
+            if (echo != null) {
+                TextReader.scan(channel, 0, Long.MAX_VALUE, null, echo);
+            }
+            try {
+                return counting.join();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /* Chunk bounds: 0, the first cut at or after every CHUNK_SIZE bytes from the previous one, the file size */
+    private static long[] cuts(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> cuts = new ArrayList<>();
+        cuts.add(0L);
+        ByteBuffer window = ByteBuffer.allocate(TextReader.BUFFER_SIZE);
+        long cut = nextCut(channel, CHUNK_SIZE, size, window);
+        while (cut < size) {
+            cuts.add(cut);
+            cut = nextCut(channel, cut + CHUNK_SIZE, size, window);
+        }
+        cuts.add(size);
+        return cuts.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /* The first position at or after from that follows a plain byte and a space, or size if there is none */
+    private static long nextCut(FileChannel channel, long from, long size, ByteBuffer window) throws IOException {
+        long position = Math.max(0, from - 2);
+        while (position + 2 < size) {
+            window.clear();
+            channel.read(window, position);
+            window.flip();
+            for (int i = 0; i + 1 < window.limit(); i++) {
+                if (isPlain(window.get(i)) && TextStats.isSpace((char) window.get(i + 1))) {
+                    return position + i + 2;
+                }
+            }
+            position += window.limit() - 1;
+        }
+        return size;
+    }
+
+    private static boolean isPlain(byte b) {
+        return b >= 0 && !TextStats.isSpace((char) b) && !TextStats.isPunctuation((char) b);
+    }
+
+    @SuppressWarnings("serial")
+    private static final class ChunkTask extends RecursiveTask<TextStats> {
+        private final FileChannel channel;
+        private final long[] cuts;
+        private final int from;
+        private final int to;
+
+        ChunkTask(FileChannel channel, long[] cuts, int from, int to) {
+            this.channel = channel;
+            this.cuts = cuts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected TextStats compute() {
+            if (to - from == 1) {
+                return count(from);
+            }
+            int mid = (from + to) >>> 1;
+            ChunkTask left = new ChunkTask(channel, cuts, from, mid);
+            left.fork();
+            TextStats stats = new ChunkTask(channel, cuts, mid, to).compute();
+            stats.add(left.join());
+            return stats;
+        }
+
+        /* Only the last chunk has tokens left open at its end */
+        private TextStats count(int chunk) {
+            TextStats stats = chunk == 0 ? new TextStats() : TextStats.afterWord();
+            try {
+                TextReader.scan(channel, cuts[chunk], cuts[chunk + 1], stats, null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return chunk == cuts.length - 2 ? stats.finish() : stats;
+        }
+    }
+}
+
+/* A text kept as its paragraphs, lines ended by '\n', each with the scanning state at its start and
+ * what it counts. An edit rescans the paragraphs it touches, then those after them only until one
+ * starts in the state it started in before: from there on, every count is as it was. Nothing is
+ * copied but the touched paragraphs, and the paragraph of an edit is looked for from that of the
+ * one before, so typing costs the length of the paragraph typed in, however long the text. */
+final class Document {
+    private static final class Paragraph {
+        String text;
+        TextStats start;
+        TextStats counts;
+    }
+
+    private final List<Paragraph> paragraphs = new ArrayList<>();
+    private final TextStats totals = new TextStats();
+    private TextStats end = new TextStats();
+    private TextStats scanner;
+    private int length;
+    /* The first paragraph the last edit touched and where it starts */
+    private int cursor;
+    private int cursorStart;
+
+    Document(CharSequence text) {
+        edit(0, 0, text);
+    }
+
+    /* Replaces removed chars at offset by inserted */
+    void edit(int offset, int removed, CharSequence inserted) {
+        if (offset < 0 || removed < 0 || offset + removed > length) {
+            throw new IndexOutOfBoundsException("Can't replace " + removed + " chars at " + offset
+                    + " in a text of " + length);
+        }
+        int first = cursor;
+        int firstStart = cursorStart;
+        while (first > 0 && firstStart > offset) {
+            first--;
+            firstStart -= paragraphs.get(first).text.length();
+        }
+        while (first < paragraphs.size() - 1 && firstStart + paragraphs.get(first).text.length() <= offset) {
+            firstStart += paragraphs.get(first).text.length();
+            first++;
+        }
+        cursor = first;
+        cursorStart = firstStart;
+        int last = Math.min(first, paragraphs.size() - 1);
+        int lastEnd = last < 0 ? 0 : firstStart + paragraphs.get(first).text.length();
+        while (last < paragraphs.size() - 1 && lastEnd < offset + removed) {
+            last++;
+            lastEnd += paragraphs.get(last).text.length();
+        }
+
+        scanner = paragraphs.isEmpty() ? new TextStats() : paragraphs.get(first).start;
+        List<Paragraph> touched = paragraphs.subList(first, last + 1);
+        StringBuilder region = new StringBuilder(lastEnd - firstStart - removed + inserted.length());
+        for (Paragraph p : touched) {
+            region.append(p.text);
+            totals.subtract(p.counts);
+        }
+        touched.clear();
+        region.replace(offset - firstStart, offset - firstStart + removed, inserted.toString());
+        length += inserted.length() - removed;
+
+        int next = first;
+        int from = 0;
+        for (int i = 0; i < region.length(); i++) {
+            if (region.charAt(i) == '\n' || i == region.length() - 1) {
+                Paragraph p = new Paragraph();
+                p.text = region.substring(from, i + 1);
+                rescan(p);
+                paragraphs.add(next++, p);
+                from = i + 1;
+            }
+        }
+        while (next < paragraphs.size() && !scanner.sameState(paragraphs.get(next).start)) {
+            Paragraph p = paragraphs.get(next++);
+            totals.subtract(p.counts);
+            rescan(p);
+        }
+        if (next == paragraphs.size()) {
+            end = scanner;
+        }
+        if (cursor == paragraphs.size()) {
+            cursor = 0;
+            cursorStart = 0;
+        }
+    }
+
+    /* Counts the paragraph starting where the scanner is, and leaves the scanner at its end */
+    private void rescan(Paragraph p) {
+        p.start = scanner;
+        p.counts = scanner.copyState();
+        p.counts.accept(p.text);
+        totals.add(p.counts);
+        scanner = p.counts.copyState();
+    }
+
+    /* The counts of the whole text, as a finished scan of it would have them */
+    TextStats stats() {
+        TextStats stats = end.copyState().finish();
+        stats.add(totals);
+        return stats;
+    }
+
+    String text() {
+        StringBuilder text = new StringBuilder(length);
+        for (Paragraph p : paragraphs) {
+            text.append(p.text);
+        }
+        return text.toString();
+    }
+}
+
+/* Scores every window of a number of consecutive sentences while streaming a text. A sentence runs
+ * up to the start of the next one, so it owns the words its terminator ends up in; its counts are
+ * the change in the totals since the previous one started, kept in a ring as long as it is in the
+ * window, and the window sums gain a sentence on one edge as they lose one on the other. */
+final class Profile {
+    private static final int COUNTERS = 5;
+
+    private final int size;
+    private final PrintStream out;
+    private final TextStats stats = new TextStats();
+    private final long[] ring;
+    private final long[] window = new long[COUNTERS];
+    private final long[] previous = new long[COUNTERS];
+    private final long[] current = new long[COUNTERS];
+    private int inWindow;
+    private long ended;
+
+    Profile(int size, PrintStream out) {
+        this.size = size;
+        this.out = out;
+        this.ring = new long[size * COUNTERS];
+        stats.sentenceListener = this::endSentence;
+    }
+
+    void scan(Path file) throws IOException {
+        out.println("from,to,ARI,FK,SMOG,CL");
+        TextReader.scan(file, stats, null);
+        endSentence();
+        if (inWindow < size) {
+            show();
+        }
+    }
+
+    private void endSentence() {
+        current[0] = stats.words;
+        current[1] = stats.sentences;
+        current[2] = stats.characters;
+        current[3] = stats.syllables;
+        current[4] = stats.polysyllables;
+        if (current[1] == previous[1]) {
+            return;
+        }
+        int slot = (int) (ended % size) * COUNTERS;
+        for (int i = 0; i < COUNTERS; i++) {
+            long added = current[i] - previous[i];
+            window[i] += added - (inWindow == size ? ring[slot + i] : 0);
+            ring[slot + i] = added;
+            previous[i] = current[i];
+        }
+        ended++;
+        if (inWindow < size) {
+            inWindow++;
+        }
+        if (inWindow == size) {
+            show();
+        }
+    }
+
+    private void show() {
+        out.format(Locale.ROOT, "%d,%d", ended - inWindow + 1, ended);
+        for (Main.Strategy s : Main.Strategy.values()) {
+            out.format(Locale.ROOT, ",%.2f", Main.score(s, window[0], window[1], window[2], window[3], window[4]));
+        }
+        out.println();
+    }
+}
+
+/* Scores every regular file under a directory on a fixed pool of workers and writes a report line
+ * per file, as CSV or JSON lines, as soon as it is scored. The walk waits for the pool when its queue
+ * is full, so the tree is never listed whole. Progress goes to stderr every few seconds. */
+final class Corpus {
+    private static final long PROGRESS_PERIOD_SECONDS = 5;
+
+    private final Writer report;
+    private final boolean json;
+    private final AtomicLong scored = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final long start = System.nanoTime();
+
+    Corpus(Writer report, boolean json) {
+        this.report = report;
+        this.json = json;
+    }
+
+    void score(Path root, int threads) throws IOException, InterruptedException {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor();
+        progress.scheduleAtFixedRate(this::showProgress,
+                PROGRESS_PERIOD_SECONDS, PROGRESS_PERIOD_SECONDS, TimeUnit.SECONDS);
+        if (!json) {
+            report.write("file,words,sentences,characters,syllables,polysyllables,ARI,FK,SMOG,CL,averageAge\n");
+        }
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (Files.isRegularFile(file)) {
+                        pool.execute(() -> score(file));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                /* A directory or file that can't be opened is skipped, the rest of the tree is still scored */
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    failed.incrementAndGet();
+                    System.err.println("Can't read " + file + ": " + e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            progress.shutdownNow();
+            report.flush();
+        }
+        showProgress();
+    }
+
+    private void score(Path file) {
+        try {
+            Main score = new Main(TextReader.scan(file, null));
+            long size = Files.size(file);
+            String line = json ? jsonLine(file, score) : csvLine(file, score);
+            synchronized (report) {
+                report.write(line);
+            }
+            bytes.addAndGet(size);
+            scored.incrementAndGet();
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            System.err.println("Can't score " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void showProgress() {
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        System.err.format(Locale.ROOT, "Scored %d files (%d failed), %.1f MB in %.1f s: %.1f files/s, %.1f MB/s%n",
+                scored.get(), failed.get(), bytes.get() / 1e6, seconds,
+                scored.get() / seconds, bytes.get() / 1e6 / seconds);
+    }
+
+    private static String csvLine(Path file, Main score) {
+        return String.format(Locale.ROOT, "\"%s\",%d,%d,%d,%d,%d,%.2f,%.2f,%.2f,%.2f,%.2f%n",
+                file.toString().replace("\"", "\"\""),
+                score.words, score.sentences, score.characters, score.syllables, score.polysyllables,
+                score.scores.get(Main.Strategy.ARI), score.scores.get(Main.Strategy.FK),
+                score.scores.get(Main.Strategy.SMOG), score.scores.get(Main.Strategy.CL),
+                score.averageAge);
+    }
+
+    private static String jsonLine(Path file, Main score) {
+        return String.format(Locale.ROOT, "{\"file\":\"%s\",\"words\":%d,\"sentences\":%d,\"characters\":%d," +
+                        "\"syllables\":%d,\"polysyllables\":%d,\"ARI\":%.2f,\"FK\":%.2f,\"SMOG\":%.2f,\"CL\":%.2f," +
+                        "\"averageAge\":%.2f}%n",
+                jsonEscape(file.toString()),
+                score.words, score.sentences, score.characters, score.syllables, score.polysyllables,
+                score.scores.get(Main.Strategy.ARI), score.scores.get(Main.Strategy.FK),
+                score.scores.get(Main.Strategy.SMOG), score.scores.get(Main.Strategy.CL),
+                score.averageAge);
+    }
+
+    private static String jsonEscape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < ' ') {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
+
 public class Main {
     private static final Scanner SCANNER = new Scanner(System.in);
 
-    String text;
-    int words;
-    int sentences;
-    int characters;
-    int syllables;
-    int polysyllables;
+    long words;
+    long sentences;
+    long characters;
+    long syllables;
+    long polysyllables;
     Map<Strategy, Double> scores = new HashMap<>();
     double averageAge;
+    private Document document;
+
+    Main(TextStats stats) {
+        countStats(stats);
+    }
 
-    Main(String filename) throws IOException {
-        Path file = Paths.get(filename);
-        text = new String(Files.readAllBytes(file));
-        countStats();
-    }
-
-    private void countStats() {
-        words = text.split("[-.,;!?]?\\s+").length;
-        sentences = text.split("[.!?]+\\s*").length;
-        characters = text.replaceAll("\\s", "").length();
-        syllables = Arrays.stream(text.split("[-.,;!?]?\\s+"))
-                .mapToInt(Main::countVowelsWord)
-                .sum();
-        polysyllables = (int) Arrays.stream(text.split("\\s+"))
-                .mapToInt(Main::countVowelsWord)
-                .filter(i -> i > 2)
-                .count();
+    /* Scores a text that is going to be edited */
+    Main(Document document) {
+        this.document = document;
+        countStats(document.stats());
+    }
+
+    /* Replaces removed chars at offset of the document by inserted and rescores it,
+     * rescanning only the paragraphs the edit changes the counts of */
+    void edit(int offset, int removed, String inserted) {
+        document.edit(offset, removed, inserted);
+        countStats(document.stats());
+    }
+
+    private void countStats(TextStats stats) {
+        words = stats.words;
+        sentences = stats.sentences;
+        characters = stats.characters;
+        syllables = stats.syllables;
+        polysyllables = stats.polysyllables;
         for (Strategy s : Strategy.values()) {
             scores.put(s, calcScore(s));
         }
@@ -70,6 +855,11 @@ public class Main {
     }
 
     private double calcScore(Strategy strategy) {
+        return score(strategy, words, sentences, characters, syllables, polysyllables);
+    }
+
+    static double score(Strategy strategy, long words, long sentences,
+                        long characters, long syllables, long polysyllables) {
         switch (strategy) {
             case ARI:
                 return 4.71 * characters / words + 0.5 * words / sentences - 21.43;
@@ -86,12 +876,48 @@ public class Main {
         }
     }
 
-    private void showText() {
+    private static void showText(String text) {
         System.out.println("The text is:");
         System.out.println(text);
         System.out.println();
     }
 
+    /* Reads the whole text to a String, shows it unless asked not to and counts it */
+    private static TextStats readText(Path file, boolean showText) throws IOException {
+        String text = new String(Files.readAllBytes(file));
+        if (showText) {
+            showText(text);
+        }
+        TextStats stats = new TextStats();
+        stats.accept(text);
+        return stats.finish();
+    }
+
+    /* Counts the text buffer by buffer, in parallel chunks if asked to and the default charset allows,
+     * showing it on the way unless asked not to */
+    private static TextStats streamText(Path file, boolean showText, boolean parallel) throws IOException {
+        parallel = parallel && ParallelTextReader.supports(Charset.defaultCharset());
+        if (showText) {
+            System.out.println("The text is:");
+        }
+        PrintStream echo = showText ? System.out : null;
+        TextStats stats = parallel
+                ? ParallelTextReader.scan(file, echo)
+                : TextReader.scan(file, echo);
+        if (showText) {
+            System.out.println();
+            System.out.println();
+        }
+        return stats;
+    }
+
+    private static int findPos(String[] args, String option) {
+        for (int i = 0; i < args.length; i++) {
+            if (option.equals(args[i])) return i;
+        }
+        return -1;
+    }
+
     private void showStats() {
         System.out.format("Words: %d%n" +
                         "Sentences: %d%n" +
@@ -121,16 +947,6 @@ public class Main {
                 : iScore + 11;
     }
 
-    private static int countVowelsWord(String word) {
-        word = word.toLowerCase();
-        if (word.endsWith("e")) {
-            word = word.substring(0, word.length() - 1);
-        }
-        word = word.replaceAll("[aeiouy]+", "=");
-        int syllables = word.length() - word.replaceAll("=", "").length();
-        return Math.max(1, syllables);
-    }
-
     private void showMenuAndScore() {
         while (true) {
             System.out.print("Enter the score you want to calculate (ARI, FK, SMOG, CL, all): ");
@@ -153,9 +969,58 @@ public class Main {
                 averageAge);
     }
 
-    public static void main(String[] args) throws IOException {
-        Main readabilityScore = new Main(args[0]);
-        readabilityScore.showText();
+    /* Scores a directory tree into a report, to stdout unless --out is given */
+    private static void scoreCorpus(String[] args) throws IOException, InterruptedException {
+        Path root = Paths.get(args[findPos(args, "--corpus") + 1]);
+        int ixThreads = findPos(args, "--threads");
+        int threads = ixThreads > -1
+                ? Integer.parseInt(args[ixThreads + 1])
+                : Runtime.getRuntime().availableProcessors();
+        int ixFormat = findPos(args, "--format");
+        boolean json = ixFormat > -1 && "jsonl".equals(args[ixFormat + 1]);
+        int ixOut = findPos(args, "--out");
+        Writer report = ixOut > -1
+                ? Files.newBufferedWriter(Paths.get(args[ixOut + 1]))
+                : new BufferedWriter(new OutputStreamWriter(System.out));
+        try {
+            new Corpus(report, json).score(root, threads);
+        } finally {
+            if (ixOut > -1) {
+                report.close();
+            }
+        }
+    }
+
+    /* Usage: <file> [--stream] [--parallel] [--no-text]
+     *    or: <file> --window n
+     *    or: --corpus <dir> [--threads n] [--format csv|jsonl] [--out report]
+     * --stream counts the file in fixed-size buffers instead of reading it whole, for texts larger than the heap;
+     * --parallel streams it in chunks counted on all cores, in UTF-8, ISO-8859-1 and ASCII;
+     * --no-text leaves the text out of the output;
+     * --window streams the scores of every n consecutive sentences as CSV, to find the hard parts;
+     * --corpus scores every file under dir on n threads, all cores by default, into a CSV or JSON lines report */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (findPos(args, "--corpus") > -1) {
+            scoreCorpus(args);
+            return;
+        }
+        Path file = Paths.get(args[0]);
+        int ixWindow = findPos(args, "--window");
+        if (ixWindow > -1) {
+            int size = Integer.parseInt(args[ixWindow + 1]);
+            if (size < 1) {
+                System.out.println("Error : a window is at least one sentence, got --window " + size);
+                return;
+            }
+            new Profile(size, System.out).scan(file);
+            return;
+        }
+        boolean showText = findPos(args, "--no-text") < 0;
+        boolean parallel = findPos(args, "--parallel") > -1;
+        TextStats stats = parallel || findPos(args, "--stream") > -1
+                ? streamText(file, showText, parallel)
+                : readText(file, showText);
+        Main readabilityScore = new Main(stats);
         readabilityScore.showStats();
         readabilityScore.showMenuAndScore();
     }
@@ -4,51 +4,1457 @@
  */
 package search;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+/* Growable int array, collects the postings of a term before they are frozen */
+final class IntList {
+    private int[] data = new int[4];
+    private int size;
+
+    void add(int value) {
+        if (size == data.length) {
+            data = Arrays.copyOf(data, size * 2);
+        }
+        data[size++] = value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int last() {
+        return data[size - 1];
+    }
+
+    void incrementLast() {
+        data[size - 1]++;
+    }
+
+    IntList addAll(IntList other) {
+        if (size + other.size > data.length) {
+            data = Arrays.copyOf(data, Math.max(size + other.size, size * 2));
+        }
+        System.arraycopy(other.data, 0, data, size, other.size);
+        size += other.size;
+        return this;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+}
+
+/* Random access to the lines of the data file */
+interface Lines extends Closeable {
+    int size();
+
+    String get(int i);
+
+    /* Passes the lines from..to-1 with their numbers to the action, in order */
+    void forEach(int from, int to, ObjIntConsumer<String> action);
+
+    default void forEach(ObjIntConsumer<String> action) {
+        forEach(0, size(), action);
+    }
+
+    /* Closes the file the lines are read from, if any */
+    @Override
+    default void close() throws IOException {
+    }
+}
+
+/* Lines kept on the heap, a null line is a deleted one and is skipped by forEach */
+final class ListLines implements Lines {
+    private final List<String> lines;
+
+    ListLines(List<String> lines) {
+        this.lines = lines;
+    }
+
+    @Override
+    public int size() {
+        return lines.size();
+    }
+
+    @Override
+    public String get(int i) {
+        return lines.get(i);
+    }
+
+    @Override
+    public void forEach(int from, int to, ObjIntConsumer<String> action) {
+        for (int i = from; i < to; i++) {
+            String line = lines.get(i);
+            if (line != null) action.accept(line, i);
+        }
+    }
+}
+
+/* Lines left in the file: only the byte offset of every line start is kept in memory */
+final class FileLines implements Lines {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final LongBuffer starts;
+    private final int size;
+
+    private FileLines(FileChannel channel, LongBuffer starts) {
+        this.channel = channel;
+        this.starts = starts;
+        this.size = starts.limit() - 1;
+    }
+
+    /* Opens the file with line starts known beforehand, the last one being the end of the last line */
+    static FileLines open(Path file, LongBuffer starts) throws IOException {
+        return new FileLines(FileChannel.open(file), starts);
+    }
+
+    static FileLines open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file);
+        long[] starts = new long[1024];
+        int size = 0;
+        long fileSize = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long lineStart = 0;
+        long pos = 0;
+        while (channel.read(buffer, pos) > 0) {
+            buffer.flip();
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    if (size + 1 == starts.length) starts = Arrays.copyOf(starts, starts.length * 2);
+                    starts[size++] = lineStart;
+                    lineStart = pos + i + 1;
+                }
+            }
+            pos += buffer.limit();
+            buffer.clear();
+        }
+        if (lineStart < fileSize) {
+            if (size + 1 == starts.length) starts = Arrays.copyOf(starts, starts.length + 1);
+            starts[size++] = lineStart;
+            lineStart = fileSize;
+        }
+        starts[size] = lineStart;
+        return new FileLines(channel, LongBuffer.wrap(Arrays.copyOf(starts, size + 1)));
+    }
+
+    LongBuffer starts() {
+        return starts.duplicate();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String get(int i) {
+        long start = starts.get(i);
+        ByteBuffer buffer = ByteBuffer.allocate((int) (starts.get(i + 1) - start));
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) break;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return decode(buffer.array(), buffer.position());
+    }
+
+    @Override
+    public void forEach(int from, int to, ObjIntConsumer<String> action) {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] line = new byte[256];
+        int length = 0;
+        int i = from;
+        long pos = starts.get(from);
+        try {
+            while (i < to && channel.read(buffer, pos) > 0) {
+                buffer.flip();
+                pos += buffer.limit();
+                while (buffer.hasRemaining() && i < to) {
+                    byte b = buffer.get();
+                    if (length == line.length) line = Arrays.copyOf(line, length * 2);
+                    line[length++] = b;
+                    if (b == '\n') {
+                        action.accept(decode(line, length), i++);
+                        length = 0;
+                    }
+                }
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (length > 0 && i < to) {
+            action.accept(decode(line, length), i);
+        }
+    }
+
+    /* Decodes a line dropping its "\n" or "\r\n" terminator */
+    private static String decode(byte[] bytes, int length) {
+        if (length > 0 && bytes[length - 1] == '\n') length--;
+        if (length > 0 && bytes[length - 1] == '\r') length--;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
+
+/* Inverted index: every term maps to the sorted array of the lines it occurs in */
+interface Index {
+    int[] EMPTY = new int[0];
+
+    /* Number of lines */
+    int size();
+
+    PostingList postingList(String term);
+
+    default int[] postings(String term) {
+        return postingList(term).lines;
+    }
+
+    /* Number of words in the line */
+    int length(int line);
+
+    /* Number of words in all the lines */
+    long totalLength();
+
+    /* Passes every term with its postings to the action */
+    void forEachTerm(BiConsumer<String, PostingList> action);
+
+    /* Lines that are deleted but still counted by size(), must not be modified */
+    default BitSet deleted() {
+        return new BitSet();
+    }
+
+    /* Terms the query word stands for: every term starting with the prefix for "prefix*",
+     * the terms within one or two edits for "word~" or "word~2", else the word itself */
+    Collection<String> expand(String query);
+}
+
+/* Lines a term occurs in, in ascending order, with the number of times it occurs in each */
+final class PostingList {
+    static final PostingList EMPTY = new PostingList(Index.EMPTY, Index.EMPTY);
+
+    final int[] lines;
+    final int[] frequencies;
+    final int maxFrequency;
+
+    PostingList(int[] lines, int[] frequencies) {
+        this.lines = lines;
+        this.frequencies = frequencies;
+        this.maxFrequency = Arrays.stream(frequencies).max().orElse(0);
+    }
+}
+
+/* Sorted terms of an index */
+interface TermDictionary {
+    int termCount();
+
+    /* The i-th term in String order */
+    String term(int i);
+}
+
+/* Prefix and fuzzy lookups over a term dictionary.
+ * The sorted terms form an implicit trie: the terms with a common prefix are a range
+ * ordered by their next char, so the trie is walked with binary searches and no extra memory. */
+final class Terms {
+    private static final int MAX_EDITS = 2;
+
+    private Terms() {
+    }
+
+    static Collection<String> expand(TermDictionary dictionary, String query) {
+        if (query.length() > 1 && query.endsWith("*")) {
+            return prefixed(dictionary, query.substring(0, query.length() - 1));
+        }
+        int tilde = query.lastIndexOf('~');
+        if (tilde > 0 && tilde >= query.length() - 2) {
+            int edits = tilde == query.length() - 1 ? 1 : query.charAt(tilde + 1) - '0';
+            if (0 <= edits && edits <= MAX_EDITS) {
+                return similar(dictionary, query.substring(0, tilde), edits);
+            }
+        }
+        return List.of(query);
+    }
+
+    static List<String> prefixed(TermDictionary dictionary, String prefix) {
+        int from = lowerBound(dictionary, prefix, 0, dictionary.termCount());
+        int lo = from;
+        int hi = dictionary.termCount();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (dictionary.term(mid).startsWith(prefix)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        List<String> res = new ArrayList<>();
+        for (int i = from; i < lo; i++) {
+            res.add(dictionary.term(i));
+        }
+        return res;
+    }
+
+    /* Terms within the given Levenshtein distance of the word */
+    static List<String> similar(TermDictionary dictionary, String word, int maxEdits) {
+        int[] row = new int[word.length() + 1];
+        for (int j = 0; j < row.length; j++) {
+            row[j] = j;
+        }
+        List<String> res = new ArrayList<>();
+        walk(dictionary, word, maxEdits, 0, dictionary.termCount(), 0, row, res);
+        return res;
+    }
+
+    /* Visits the terms lo..hi-1, which share a prefix of the given length whose distance row to the word is known */
+    private static void walk(TermDictionary dictionary, String word, int maxEdits,
+                             int lo, int hi, int depth, int[] row, List<String> res) {
+        if (lo < hi && dictionary.term(lo).length() == depth) {
+            if (row[word.length()] <= maxEdits) res.add(dictionary.term(lo));
+            lo++;
+        }
+        while (lo < hi) {
+            char c = dictionary.term(lo).charAt(depth);
+            int end = upperBound(dictionary, depth, c, lo, hi);
+            int[] next = new int[row.length];
+            next[0] = row[0] + 1;
+            int min = next[0];
+            for (int j = 1; j < row.length; j++) {
+                int substitution = row[j - 1] + (word.charAt(j - 1) == c ? 0 : 1);
+                next[j] = Math.min(substitution, Math.min(row[j] + 1, next[j - 1] + 1));
+                min = Math.min(min, next[j]);
+            }
+            if (min <= maxEdits) {
+                walk(dictionary, word, maxEdits, lo, end, depth + 1, next, res);
+            }
+            lo = end;
+        }
+    }
+
+    private static int lowerBound(TermDictionary dictionary, String key, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (dictionary.term(mid).compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /* First term in lo..hi-1, all longer than depth, whose char at depth is after c */
+    private static int upperBound(TermDictionary dictionary, int depth, char c, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (dictionary.term(mid).charAt(depth) <= c) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
+
+/* Index held in a hash map on the heap */
+final class MemoryIndex implements Index, TermDictionary {
+    private static final int MIN_SHARD_SIZE = 10_000;
+
+    private final Map<String, PostingList> postings;
+    private final String[] terms;
+    private final int[] lengths;
+    private final long totalLength;
+
+    private MemoryIndex(Map<String, PostingList> postings, int[] lengths) {
+        this.postings = postings;
+        this.terms = postings.keySet().toArray(new String[0]);
+        this.lengths = lengths;
+        this.totalLength = Arrays.stream(lengths).asLongStream().sum();
+        Arrays.sort(terms);
+    }
+
+    /* Lines and frequencies of a term while it is being indexed */
+    private static final class TermLists {
+        final IntList lines = new IntList();
+        final IntList frequencies = new IntList();
+
+        void add(int line) {
+            if (lines.size() > 0 && lines.last() == line) {
+                frequencies.incrementLast();
+            } else {
+                lines.add(line);
+                frequencies.add(1);
+            }
+        }
+
+        TermLists addAll(TermLists other) {
+            lines.addAll(other.lines);
+            frequencies.addAll(other.frequencies);
+            return this;
+        }
+
+        PostingList toPostingList() {
+            return new PostingList(lines.toArray(), frequencies.toArray());
+        }
+    }
+
+    static MemoryIndex build(Lines lines) {
+        Map<String, TermLists> lists = new HashMap<>();
+        int[] lengths = new int[lines.size()];
+        lines.forEach((line, i) -> lengths[i] = addLine(List.of(lists), line, i));
+        return new MemoryIndex(freeze(lists), lengths);
+    }
+
+    /* Same index as build(), made on the common fork/join pool.
+     * Every shard of lines is indexed into one map per term partition,
+     * then every partition concatenates its shards' lists in line order. */
+    static MemoryIndex buildParallel(Lines lines) {
+        int parts = ForkJoinPool.getCommonPoolParallelism();
+        int size = lines.size();
+        int shards = Math.max(1, Math.min(parts * 4, size / MIN_SHARD_SIZE));
+        int[] lengths = new int[size];
+        List<List<Map<String, TermLists>>> shardLists = IntStream.range(0, shards).parallel()
+                .mapToObj(s -> {
+                    List<Map<String, TermLists>> lists = new ArrayList<>(parts);
+                    for (int p = 0; p < parts; p++) lists.add(new HashMap<>());
+                    lines.forEach((int) ((long) s * size / shards), (int) ((long) (s + 1) * size / shards),
+                            (line, i) -> lengths[i] = addLine(lists, line, i));
+                    return lists;
+                })
+                .collect(Collectors.toList());
+        List<Map<String, PostingList>> partPostings = IntStream.range(0, parts).parallel()
+                .mapToObj(p -> {
+                    Map<String, TermLists> lists = new HashMap<>();
+                    for (List<Map<String, TermLists>> shard : shardLists) {
+                        shard.get(p).forEach((term, list) -> lists.merge(term, list, TermLists::addAll));
+                    }
+                    return freeze(lists);
+                })
+                .collect(Collectors.toList());
+        Map<String, PostingList> postings = new HashMap<>();
+        partPostings.forEach(postings::putAll);
+        return new MemoryIndex(postings, lengths);
+    }
+
+    private static Map<String, PostingList> freeze(Map<String, TermLists> lists) {
+        Map<String, PostingList> postings = new HashMap<>(lists.size() * 4 / 3 + 1);
+        lists.forEach((term, list) -> postings.put(term, list.toPostingList()));
+        return postings;
+    }
+
+    /* Adds the words of line i to the term lists, spread over the partitions by term hash,
+     * and returns the number of words */
+    private static int addLine(List<Map<String, TermLists>> parts, String line, int i) {
+        String[] words = line.split(" ");
+        for (String word : words) {
+            word = word.toLowerCase();
+            Map<String, TermLists> lists = parts.get(Math.floorMod(word.hashCode(), parts.size()));
+            lists.computeIfAbsent(word, k -> new TermLists()).add(i);
+        }
+        return words.length;
+    }
+
+    @Override
+    public int size() {
+        return lengths.length;
+    }
+
+    @Override
+    public PostingList postingList(String term) {
+        return postings.getOrDefault(term, PostingList.EMPTY);
+    }
+
+    @Override
+    public int length(int line) {
+        return lengths[line];
+    }
+
+    @Override
+    public long totalLength() {
+        return totalLength;
+    }
+
+    @Override
+    public void forEachTerm(BiConsumer<String, PostingList> action) {
+        postings.forEach(action);
+    }
+
+    @Override
+    public Collection<String> expand(String query) {
+        return Terms.expand(this, query);
+    }
+
+    @Override
+    public int termCount() {
+        return terms.length;
+    }
+
+    @Override
+    public String term(int i) {
+        return terms[i];
+    }
+}
+
+/* Index memory-mapped from a segment file written next to the data file.
+ * Layout: header (magic, version, data file size and mtime, line and term counts, total length),
+ * line starts as longs, line lengths as ints, term and postings offsets as ints,
+ * terms as UTF-8 bytes sorted in String order, postings and their frequencies as ints. */
+final class SegmentIndex implements Index, TermDictionary, Closeable {
+    private static final int MAGIC = 0x53534547;
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 40;
+
+    /* Unsafe.invokeCleaner where the runtime has it, to unmap a buffer when the index is closed
+     * instead of when the buffer is collected */
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final int size;
+    private final int termCount;
+    private final long totalLength;
+    private final LongBuffer lineStarts;
+    private final IntBuffer lengths;
+    private final IntBuffer termOffsets;
+    private final IntBuffer postingOffsets;
+    private final ByteBuffer terms;
+    private final IntBuffer postings;
+    private final IntBuffer frequencies;
+    private final List<ByteBuffer> mappings;
+
+    private SegmentIndex(int size, int termCount, long totalLength, LongBuffer lineStarts, IntBuffer lengths,
+                         IntBuffer termOffsets, IntBuffer postingOffsets, ByteBuffer terms,
+                         IntBuffer postings, IntBuffer frequencies, List<ByteBuffer> mappings) {
+        this.size = size;
+        this.termCount = termCount;
+        this.totalLength = totalLength;
+        this.lineStarts = lineStarts;
+        this.lengths = lengths;
+        this.termOffsets = termOffsets;
+        this.postingOffsets = postingOffsets;
+        this.terms = terms;
+        this.postings = postings;
+        this.frequencies = frequencies;
+        this.mappings = mappings;
+    }
+
+    static Path pathFor(Path dataFile) {
+        return dataFile.resolveSibling(dataFile.getFileName() + ".seg");
+    }
+
+    /* Maps the segment of the data file, or returns null if there is none or it is out of date */
+    static SegmentIndex open(Path dataFile) throws IOException {
+        Path file = pathFor(dataFile);
+        if (!Files.exists(file)) return null;
+        List<ByteBuffer> mappings = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file)) {
+            if (channel.size() < HEADER_SIZE) return null;
+            ByteBuffer header = map(channel, 0, HEADER_SIZE, mappings);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION
+                    || header.getLong() != Files.size(dataFile)
+                    || header.getLong() != Files.getLastModifiedTime(dataFile).toMillis()) {
+                unmap(mappings);
+                return null;
+            }
+            int size = header.getInt();
+            int termCount = header.getInt();
+            long totalLength = header.getLong();
+            long pos = HEADER_SIZE;
+            LongBuffer lineStarts = map(channel, pos, (size + 1L) * Long.BYTES, mappings).asLongBuffer();
+            pos += (size + 1L) * Long.BYTES;
+            IntBuffer lengths = map(channel, pos, (long) size * Integer.BYTES, mappings).asIntBuffer();
+            pos += (long) size * Integer.BYTES;
+            IntBuffer termOffsets = map(channel, pos, (termCount + 1L) * Integer.BYTES, mappings).asIntBuffer();
+            pos += (termCount + 1L) * Integer.BYTES;
+            IntBuffer postingOffsets = map(channel, pos, (termCount + 1L) * Integer.BYTES, mappings).asIntBuffer();
+            pos += (termCount + 1L) * Integer.BYTES;
+            int termBytes = termOffsets.get(termCount);
+            ByteBuffer terms = map(channel, pos, termBytes, mappings);
+            pos += align(termBytes);
+            long postingBytes = (long) postingOffsets.get(termCount) * Integer.BYTES;
+            IntBuffer postings = map(channel, pos, postingBytes, mappings).asIntBuffer();
+            pos += postingBytes;
+            IntBuffer frequencies = map(channel, pos, postingBytes, mappings).asIntBuffer();
+            return new SegmentIndex(size, termCount, totalLength, lineStarts, lengths,
+                    termOffsets, postingOffsets, terms, postings, frequencies, mappings);
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long pos, long length, List<ByteBuffer> mappings)
+            throws IOException {
+        if (length > Integer.MAX_VALUE) throw new IOException("Segment section is too large: " + length);
+        ByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+        mappings.add(mapping);
+        return mapping;
+    }
+
+    /* Left to the garbage collector where the runtime can't unmap them */
+    private static void unmap(List<ByteBuffer> mappings) {
+        if (INVOKE_CLEANER != null) {
+            for (ByteBuffer mapping : mappings) {
+                try {
+                    INVOKE_CLEANER.invoke(UNSAFE, mapping);
+                } catch (ReflectiveOperationException e) {
+                    break;
+                }
+            }
+        }
+        mappings.clear();
+    }
+
+    private static int align(int length) {
+        return (length + Integer.BYTES - 1) / Integer.BYTES * Integer.BYTES;
+    }
+
+    /* Writes the segment of the data file through a temporary file, so a failed write leaves no segment.
+     * The size and modification time are the data file's from before it was read, so a segment of a file
+     * changed while it was indexed is out of date. */
+    static void write(Path dataFile, long dataSize, long dataModified, LongBuffer lineStarts, Index index)
+            throws IOException {
+        List<Map.Entry<String, PostingList>> sorted = new ArrayList<>();
+        index.forEachTerm((term, list) -> sorted.add(Map.entry(term, list)));
+        sorted.sort(Map.Entry.comparingByKey());
+        List<Map.Entry<byte[], PostingList>> entries = new ArrayList<>(sorted.size());
+        for (var entry : sorted) {
+            entries.add(Map.entry(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue()));
+        }
+        int termBytes = 0;
+        long postingCount = 0;
+        for (var entry : entries) {
+            termBytes += entry.getKey().length;
+            postingCount += entry.getValue().lines.length;
+        }
+        if (postingCount > Integer.MAX_VALUE / Integer.BYTES) {
+            throw new IOException("Too many postings for a segment: " + postingCount);
+        }
+        Path file = pathFor(dataFile);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(dataSize);
+            out.writeLong(dataModified);
+            out.writeInt(index.size());
+            out.writeInt(entries.size());
+            out.writeLong(index.totalLength());
+            for (int i = 0; i <= index.size(); i++) {
+                out.writeLong(lineStarts.get(i));
+            }
+            for (int i = 0; i < index.size(); i++) {
+                out.writeInt(index.length(i));
+            }
+            int offset = 0;
+            out.writeInt(offset);
+            for (var entry : entries) {
+                out.writeInt(offset += entry.getKey().length);
+            }
+            offset = 0;
+            out.writeInt(offset);
+            for (var entry : entries) {
+                out.writeInt(offset += entry.getValue().lines.length);
+            }
+            for (var entry : entries) {
+                out.write(entry.getKey());
+            }
+            for (int i = termBytes; i < align(termBytes); i++) {
+                out.writeByte(0);
+            }
+            for (var entry : entries) {
+                for (int line : entry.getValue().lines) {
+                    out.writeInt(line);
+                }
+            }
+            for (var entry : entries) {
+                for (int frequency : entry.getValue().frequencies) {
+                    out.writeInt(frequency);
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    LongBuffer lineStarts() {
+        return lineStarts.duplicate();
+    }
+
+    /* Unmaps the segment, nothing may read the index or the line starts taken from it afterwards */
+    @Override
+    public void close() {
+        unmap(mappings);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int[] postings(String term) {
+        int i = find(term);
+        return i < 0 ? EMPTY : read(postings, i);
+    }
+
+    @Override
+    public PostingList postingList(String term) {
+        int i = find(term);
+        return i < 0 ? PostingList.EMPTY : postingList(i);
+    }
+
+    @Override
+    public int length(int line) {
+        return lengths.get(line);
+    }
+
+    @Override
+    public long totalLength() {
+        return totalLength;
+    }
+
+    @Override
+    public void forEachTerm(BiConsumer<String, PostingList> action) {
+        for (int i = 0; i < termCount; i++) {
+            action.accept(term(i), postingList(i));
+        }
+    }
+
+    @Override
+    public Collection<String> expand(String query) {
+        return Terms.expand(this, query);
+    }
+
+    @Override
+    public int termCount() {
+        return termCount;
+    }
+
+    @Override
+    public String term(int i) {
+        int from = termOffsets.get(i);
+        byte[] bytes = new byte[termOffsets.get(i + 1) - from];
+        terms.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private PostingList postingList(int i) {
+        return new PostingList(read(postings, i), read(frequencies, i));
+    }
+
+    private int[] read(IntBuffer buffer, int i) {
+        int from = postingOffsets.get(i);
+        int[] res = new int[postingOffsets.get(i + 1) - from];
+        buffer.get(from, res);
+        return res;
+    }
+
+    /* Binary search of the term in the sorted terms */
+    private int find(String term) {
+        int lo = 0;
+        int hi = termCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = term(mid).compareTo(term);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+}
+
+/* Lines [base, base + lines.size()) of a live index with their own index */
+final class Segment {
+    final int base;
+    final Index index;
+    final Lines lines;
+
+    Segment(int base, Index index, Lines lines) {
+        this.base = base;
+        this.index = index;
+        this.lines = lines;
+    }
+
+    int end() {
+        return base + lines.size();
+    }
+
+    /* Merges two adjacent segments of the snapshot, leaving the deleted lines out of the merged index */
+    static Segment merge(Snapshot snapshot, Segment a, Segment b) {
+        String[] merged = new String[b.end() - a.base];
+        snapshot.forEach(a.base, b.end(), (line, i) -> merged[i - a.base] = line);
+        Lines lines = new ListLines(Arrays.asList(merged));
+        return new Segment(a.base, MemoryIndex.build(lines), lines);
+    }
+}
+
+/* Immutable view of a live index: its segments in line order and the deleted lines */
+final class Snapshot implements Index, Lines {
+    final List<Segment> segments;
+    private final BitSet deleted;
+    private final int size;
+    private final long totalLength;
+
+    Snapshot(List<Segment> segments, BitSet deleted) {
+        this.segments = List.copyOf(segments);
+        this.deleted = deleted;
+        this.size = segments.get(segments.size() - 1).end();
+        this.totalLength = segments.stream().mapToLong(segment -> segment.index.totalLength()).sum();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int[] postings(String term) {
+        if (segments.size() == 1 && deleted.isEmpty()) {
+            return segments.get(0).index.postings(term);
+        }
+        IntList res = new IntList();
+        for (Segment segment : segments) {
+            for (int line : segment.index.postings(term)) {
+                if (!deleted.get(segment.base + line)) res.add(segment.base + line);
+            }
+        }
+        return res.toArray();
+    }
+
+    @Override
+    public PostingList postingList(String term) {
+        if (segments.size() == 1 && deleted.isEmpty()) {
+            return segments.get(0).index.postingList(term);
+        }
+        IntList lines = new IntList();
+        IntList frequencies = new IntList();
+        for (Segment segment : segments) {
+            PostingList list = segment.index.postingList(term);
+            for (int i = 0; i < list.lines.length; i++) {
+                if (!deleted.get(segment.base + list.lines[i])) {
+                    lines.add(segment.base + list.lines[i]);
+                    frequencies.add(list.frequencies[i]);
+                }
+            }
+        }
+        return new PostingList(lines.toArray(), frequencies.toArray());
+    }
+
+    @Override
+    public int length(int line) {
+        Segment segment = segmentOf(line);
+        return segment.index.length(line - segment.base);
+    }
+
+    @Override
+    public long totalLength() {
+        return totalLength;
+    }
+
+    @Override
+    public void forEachTerm(BiConsumer<String, PostingList> action) {
+        Set<String> terms = new HashSet<>();
+        for (Segment segment : segments) {
+            segment.index.forEachTerm((term, list) -> terms.add(term));
+        }
+        for (String term : terms) {
+            action.accept(term, postingList(term));
+        }
+    }
+
+    @Override
+    public BitSet deleted() {
+        return deleted;
+    }
+
+    @Override
+    public Collection<String> expand(String query) {
+        if (segments.size() == 1) {
+            return segments.get(0).index.expand(query);
+        }
+        Set<String> terms = new TreeSet<>();
+        for (Segment segment : segments) {
+            terms.addAll(segment.index.expand(query));
+        }
+        return terms;
+    }
+
+    @Override
+    public String get(int i) {
+        Segment segment = segmentOf(i);
+        return segment.lines.get(i - segment.base);
+    }
+
+    /* Passes the lines that are not deleted */
+    @Override
+    public void forEach(int from, int to, ObjIntConsumer<String> action) {
+        for (Segment segment : segments) {
+            if (segment.end() <= from || to <= segment.base) continue;
+            segment.lines.forEach(Math.max(from, segment.base) - segment.base,
+                    Math.min(to, segment.end()) - segment.base, (line, i) -> {
+                        if (!deleted.get(segment.base + i)) action.accept(line, segment.base + i);
+                    });
+        }
+    }
+
+    private Segment segmentOf(int line) {
+        int lo = 0;
+        int hi = segments.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).base <= line) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return segments.get(lo);
+    }
+}
+
+/* Index that takes appends and deletes while it is searched.
+ * Readers take the current Snapshot without locking and writers publish a new one.
+ * Appended records go to small in-memory segments and deletes to the tombstone set;
+ * a background thread merges the smallest adjacent segments when there are too many.
+ * Readers that may outlast a reload retain the index, and its files are closed when the last one releases it. */
+final class LiveIndex {
+    private static final int MAX_SEGMENTS = 8;
+
+    private final Object writeLock = new Object();
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "segment-merger");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /* The one built from the data file, the only one with files to close */
+    private final Segment base;
+    /* Readers that retained the index, and one more until it is closed */
+    private final AtomicInteger users = new AtomicInteger(1);
+    private volatile Snapshot snapshot;
+
+    LiveIndex(Index index, Lines lines) {
+        base = new Segment(0, index, lines);
+        snapshot = new Snapshot(List.of(base), new BitSet());
+    }
+
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /* Appends the records and returns the line number of the first one */
+    int add(List<String> records) {
+        Lines lines = new ListLines(List.copyOf(records));
+        Index index = MemoryIndex.build(lines);
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+            List<Segment> segments = new ArrayList<>(current.segments);
+            segments.add(new Segment(current.size(), index, lines));
+            snapshot = new Snapshot(segments, current.deleted());
+            if (segments.size() > MAX_SEGMENTS && !merger.isShutdown()) {
+                merger.execute(this::merge);
+            }
+            return current.size();
+        }
+    }
+
+    /* Returns false if there is no such line or it is already deleted */
+    boolean delete(int line) {
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+            if (line < 0 || line >= current.size() || current.deleted().get(line)) return false;
+            BitSet deleted = (BitSet) current.deleted().clone();
+            deleted.set(line);
+            snapshot = new Snapshot(current.segments, deleted);
+            return true;
+        }
+    }
+
+    /* Keeps the files of the index open until release(), returns false if they are already closed */
+    boolean retain() {
+        int count;
+        do {
+            count = users.get();
+            if (count == 0) return false;
+        } while (!users.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    void release() {
+        if (users.decrementAndGet() > 0) return;
+        try {
+            base.lines.close();
+            if (base.index instanceof Closeable) {
+                ((Closeable) base.index).close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* Stops the merger thread once a merge under way is done, and closes the files once every reader
+     * that retained the index has released it. The index can still be written, but its segments
+     * are no longer merged, and only retained readers may read it. */
+    void close() {
+        synchronized (writeLock) {
+            if (merger.isShutdown()) return;
+            merger.shutdown();
+        }
+        release();
+    }
+
+    /* Only this thread replaces segments, so the merged pair is still in place when it is published.
+     * The first segment, the one built from the data file, is never merged. */
+    private void merge() {
+        Snapshot current;
+        while ((current = snapshot).segments.size() > MAX_SEGMENTS) {
+            List<Segment> segments = current.segments;
+            int best = 1;
+            for (int i = 2; i + 1 < segments.size(); i++) {
+                if (segments.get(i + 1).end() - segments.get(i).base
+                        < segments.get(best + 1).end() - segments.get(best).base) {
+                    best = i;
+                }
+            }
+            Segment merged = Segment.merge(current, segments.get(best), segments.get(best + 1));
+            synchronized (writeLock) {
+                List<Segment> latest = new ArrayList<>(snapshot.segments);
+                latest.set(best, merged);
+                latest.remove(best + 1);
+                snapshot = new Snapshot(latest, snapshot.deleted());
+            }
+        }
+    }
+}
+
+/* LRU cache of query results, bounded by the total number of cached line numbers.
+ * Results are only valid for the snapshot they were found in, so a new snapshot clears the cache. */
+final class QueryCache {
+    private final long capacity;
+    private final LinkedHashMap<String, int[]> results = new LinkedHashMap<>(16, 0.75f, true);
+    private Snapshot snapshot;
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    QueryCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /* Key of a query whose terms are order and repetition insensitive */
+    static String key(String strategy, String[] queries) {
+        return strategy + '\t' + String.join(" ", new TreeSet<>(Arrays.asList(queries)));
+    }
+
+    int[] get(Snapshot current, String key, Supplier<int[]> find) {
+        synchronized (this) {
+            if (current != snapshot) {
+                results.clear();
+                weight = 0;
+                snapshot = current;
+            }
+            int[] res = results.get(key);
+            if (res != null) {
+                hits++;
+                return res;
+            }
+            misses++;
+        }
+        int[] res = find.get();
+        synchronized (this) {
+            if (current == snapshot && res.length <= capacity && results.put(key, res) == null) {
+                weight += res.length;
+                var it = results.values().iterator();
+                while (weight > capacity) {
+                    weight -= it.next().length;
+                    it.remove();
+                    evictions++;
+                }
+            }
+        }
+        return res;
+    }
+
+    synchronized String stats() {
+        return String.format("Cache: %d hits, %d misses, %d evictions, %d queries and %d of %d lines cached",
+                hits, misses, evictions, results.size(), weight, capacity);
+    }
+}
+
+/* Ranks lines by BM25 and keeps the best k with MaxScore pruning.
+ * The query terms are ordered by the upper bound of their score. Once the k-th best score
+ * reaches the sum of the smallest bounds, those terms can no longer bring a line into the top:
+ * their lists are not walked any more, only probed for lines found through the other terms. */
+final class Ranker {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private Ranker() {
+    }
+
+    /* Returns the k best lines, best first, ties broken by line number */
+    static int[] top(Index index, String[] queries, int k) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String query : queries) {
+            terms.addAll(index.expand(query));
+        }
+        int lineCount = index.size() - index.deleted().cardinality();
+        double averageLength = Math.max(1.0, (double) index.totalLength() / Math.max(1, index.size()));
+        List<PostingList> lists = new ArrayList<>();
+        for (String term : terms) {
+            PostingList list = index.postingList(term);
+            if (list.lines.length > 0) lists.add(list);
+        }
+        int n = lists.size();
+        double[] idf = new double[n];
+        double[] bounds = new double[n];
+        for (int t = 0; t < n; t++) {
+            int df = lists.get(t).lines.length;
+            idf[t] = Math.log(1 + (lineCount - df + 0.5) / (df + 0.5));
+        }
+        Integer[] order = new Integer[n];
+        for (int t = 0; t < n; t++) {
+            int tf = lists.get(t).maxFrequency;
+            bounds[t] = idf[t] * tf * (K1 + 1) / (tf + K1 * (1 - B));
+            order[t] = t;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(t -> bounds[t]));
+        PostingList[] sorted = new PostingList[n];
+        double[] weights = new double[n];
+        double[] cumulative = new double[n];
+        for (int t = 0; t < n; t++) {
+            sorted[t] = lists.get(order[t]);
+            weights[t] = idf[order[t]];
+            cumulative[t] = (t > 0 ? cumulative[t - 1] : 0) + bounds[order[t]];
+        }
+
+        TopLines top = new TopLines(k);
+        int[] pos = new int[n];
+        int essential = 0;
+        while (essential < n) {
+            int line = Integer.MAX_VALUE;
+            for (int t = essential; t < n; t++) {
+                if (pos[t] < sorted[t].lines.length) line = Math.min(line, sorted[t].lines[pos[t]]);
+            }
+            if (line == Integer.MAX_VALUE) break;
+            double lengthNorm = K1 * (1 - B + B * index.length(line) / averageLength);
+            double score = 0;
+            for (int t = essential; t < n; t++) {
+                if (pos[t] < sorted[t].lines.length && sorted[t].lines[pos[t]] == line) {
+                    int tf = sorted[t].frequencies[pos[t]++];
+                    score += weights[t] * tf * (K1 + 1) / (tf + lengthNorm);
+                }
+            }
+            for (int t = essential - 1; t >= 0 && score + cumulative[t] > top.threshold(); t--) {
+                pos[t] = Postings.gallop(sorted[t].lines, pos[t], line);
+                if (pos[t] < sorted[t].lines.length && sorted[t].lines[pos[t]] == line) {
+                    int tf = sorted[t].frequencies[pos[t]];
+                    score += weights[t] * tf * (K1 + 1) / (tf + lengthNorm);
+                }
+            }
+            if (top.offer(line, score)) {
+                while (essential < n && cumulative[essential] <= top.threshold()) essential++;
+            }
+        }
+        return top.lines();
+    }
+
+    /* Bounded min-heap of the best scored lines, the worst one on top */
+    private static final class TopLines {
+        private final int[] lines;
+        private final double[] scores;
+        private int size;
+
+        TopLines(int k) {
+            lines = new int[k];
+            scores = new double[k];
+        }
+
+        /* Score a line must beat to get in */
+        double threshold() {
+            return size < lines.length ? 0 : scores[0];
+        }
+
+        boolean offer(int line, double score) {
+            if (lines.length == 0 || size == lines.length && score <= scores[0]) return false;
+            int i;
+            if (size < lines.length) {
+                i = size++;
+                while (i > 0 && worse(line, score, (i - 1) / 2)) {
+                    move((i - 1) / 2, i);
+                    i = (i - 1) / 2;
+                }
+            } else {
+                i = 0;
+                while (2 * i + 1 < size) {
+                    int child = 2 * i + 1;
+                    if (child + 1 < size && worse(lines[child + 1], scores[child + 1], child)) child++;
+                    if (!worse(lines[child], scores[child], line, score)) break;
+                    move(child, i);
+                    i = child;
+                }
+            }
+            lines[i] = line;
+            scores[i] = score;
+            return true;
+        }
+
+        private boolean worse(int line, double score, int i) {
+            return worse(line, score, lines[i], scores[i]);
+        }
+
+        private static boolean worse(int line, double score, int otherLine, double otherScore) {
+            return score < otherScore || score == otherScore && line > otherLine;
+        }
+
+        private void move(int from, int to) {
+            lines[to] = lines[from];
+            scores[to] = scores[from];
+        }
+
+        /* Lines best first */
+        int[] lines() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> worse(lines[a], scores[a], lines[b], scores[b]) ? 1
+                    : worse(lines[b], scores[b], lines[a], scores[a]) ? -1 : 0);
+            return Arrays.stream(order).mapToInt(i -> lines[i]).toArray();
+        }
+    }
+}
+
+/* Latency histogram with four buckets per power of two microseconds, about 19% resolution */
+final class LatencyHistogram {
+    private final AtomicLongArray counts = new AtomicLongArray(256);
+    private final LongAdder total = new LongAdder();
+
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(bucket(micros));
+        total.increment();
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    /* Upper bound in microseconds of the bucket holding the given fraction of the recorded latencies */
+    long percentile(double fraction) {
+        if (count() == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * count()));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(counts.length() - 1);
+    }
+
+    private static int bucket(long micros) {
+        if (micros < 4) return (int) micros;
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        return 4 * (exp - 1) + (int) ((micros >> (exp - 2)) & 3);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < 4) return bucket + 1;
+        int exp = bucket / 4 + 1;
+        return (4L + bucket % 4 + 1) << (exp - 2);
+    }
+}
+
+/* Set operations over sorted posting arrays */
+final class Postings {
+    private Postings() {
+    }
+
+    /* Intersects the lists smallest first, stopping as soon as the result is empty */
+    static int[] intersectAll(int[][] lists) {
+        if (lists.length == 0) return Index.EMPTY;
+        lists = lists.clone();
+        Arrays.sort(lists, Comparator.comparingInt(list -> list.length));
+        int[] res = lists[0];
+        for (int i = 1; i < lists.length && res.length > 0; i++) {
+            res = intersect(res, lists[i]);
+        }
+        return res;
+    }
+
+    /* Looks every element of the smaller list up in the larger one by galloping,
+     * so the cost is driven by the smaller list */
+    static int[] intersect(int[] small, int[] large) {
+        int[] res = new int[small.length];
+        int n = 0;
+        int j = 0;
+        for (int i = 0; i < small.length && j < large.length; i++) {
+            j = gallop(large, j, small[i]);
+            if (j < large.length && large[j] == small[i]) {
+                res[n++] = small[i];
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    /* Returns the first index at or after from whose value is not less than key */
+    static int gallop(int[] a, int from, int key) {
+        int step = 1;
+        int lo = from;
+        int hi = from;
+        while (hi < a.length && a[hi] < key) {
+            lo = hi + 1;
+            hi += step;
+            step *= 2;
+        }
+        hi = Math.min(hi, a.length);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /* Merges the lists into one sorted list without repetitions */
+    static int[] union(Collection<int[]> lists) {
+        if (lists.size() == 1) return lists.iterator().next();
+        IntList all = new IntList();
+        for (int[] list : lists) {
+            for (int line : list) {
+                all.add(line);
+            }
+        }
+        int[] res = all.toArray();
+        Arrays.sort(res);
+        int n = 0;
+        for (int i = 0; i < res.length; i++) {
+            if (n == 0 || res[n - 1] != res[i]) res[n++] = res[i];
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    /* Sets the bits of every line in the lists */
+    static BitSet unionBits(int[][] lists, int size) {
+        BitSet bits = new BitSet(size);
+        for (int[] list : lists) {
+            for (int line : list) {
+                bits.set(line);
+            }
+        }
+        return bits;
+    }
+}
+
 public class Main {
     private enum Strategy {
         ALL {
             @Override
-            Set<Integer> find(Main searchEngine, String[] queries) {
-                if (queries.length == 0) return Set.of();
-                List<Integer> first = searchEngine.invIndex.get(queries[0]);
-                if (first == null) return Set.of();
-                Set<Integer> res = new HashSet<>(first);
-                for (String query : queries) {
-                    res.retainAll(searchEngine.invIndex.get(query));
-                }
-                return res;
+            IntStream find(Index index, String[] queries) {
+                return Arrays.stream(Postings.intersectAll(postings(index, queries)));
             }
         },
         ANY {
             @Override
-            Set<Integer> find(Main searchEngine, String[] queries) {
-                Set<Integer> res = new HashSet<>();
-                for (String query : queries) {
-                    res.addAll(searchEngine.invIndex.get(query));
-                }
-                return res;
+            IntStream find(Index index, String[] queries) {
+                return Postings.unionBits(postings(index, queries), index.size()).stream();
             }
         },
         NONE {
             @Override
-            Set<Integer> find(Main searchEngine, String[] queries) {
-                Set<Integer> res = IntStream.range(0, searchEngine.lines.size())
-                        .boxed().collect(Collectors.toCollection(HashSet::new));
-                for (String query : queries) {
-                    res.removeAll(searchEngine.invIndex.get(query));
-                }
-                return res;
+            IntStream find(Index index, String[] queries) {
+                BitSet res = new BitSet(index.size());
+                res.set(0, index.size());
+                res.andNot(index.deleted());
+                res.andNot(Postings.unionBits(postings(index, queries), index.size()));
+                return res.stream();
+            }
+        },
+        TOP {
+            @Override
+            IntStream find(Index index, String[] queries) {
+                return Arrays.stream(Ranker.top(index, queries, TOP_K));
             }
         };
 
-        abstract Set<Integer> find(Main searchEngine, String[] queries);
+        /* Returns the matching lines in ascending order, or the best ranked first for TOP */
+        abstract IntStream find(Index index, String[] queries);
+
+        /* Postings of every query word, the union of its terms' postings for a prefix or fuzzy word */
+        static int[][] postings(Index index, String[] queries) {
+            int[][] lists = new int[queries.length][];
+            for (int i = 0; i < queries.length; i++) {
+                List<int[]> termLists = new ArrayList<>();
+                for (String term : index.expand(queries[i])) {
+                    termLists.add(index.postings(term));
+                }
+                lists[i] = termLists.isEmpty() ? Index.EMPTY : Postings.union(termLists);
+            }
+            return lists;
+        }
 
         static String listAvailable() {
             return Arrays.stream(values()).map(Strategy::toString)
@@ -57,29 +1463,52 @@ public class Main {
     }
 
     private static final Scanner SCANNER = new Scanner(System.in);
+    private static final int BATCH_SIZE = 4096;
+    private static final int TOP_K = 10;
+    private static final int BENCH_WARMUP = 2;
+    private static final int BENCH_ITERATIONS = 5;
+    private static final int BENCH_QUERIES = 2000;
 
-    private List<String> lines;
-    private Map<String, List<Integer>> invIndex;
+    private volatile LiveIndex live;
+    private QueryCache cache;
+
+    /* Reads the data file and indexes it */
+    private static Segment readData(Path file, boolean stream, boolean parallel) throws IOException {
+        return buildIndex(stream ? FileLines.open(file) : new ListLines(Files.readAllLines(file)), parallel);
+    }
 
-    private void readData(String filename) {
+    /* Indexes the lines, closing them if that fails */
+    private static Segment buildIndex(Lines lines, boolean parallel) throws IOException {
         try {
-            lines = Files.readAllLines(Paths.get(filename));
-        } catch (IOException e) {
-            e.printStackTrace();
+            return new Segment(0, parallel ? MemoryIndex.buildParallel(lines) : MemoryIndex.build(lines), lines);
+        } catch (RuntimeException e) {
+            lines.close();
+            throw e;
         }
     }
 
-    private void buildIndex() {
-        invIndex = new HashMap<>();
-        for (int i = 0; i < lines.size(); i++) {
-            for (String word : lines.get(i).split(" ")) {
-                word = word.toLowerCase();
-                if (!invIndex.containsKey(word)) {
-                    invIndex.put(word, new ArrayList<>());
-                }
-                invIndex.get(word).add(i);
+    /* Maps the segment of the data file, rebuilding and saving it first if it is missing or stale */
+    private static Segment loadSegment(Path file, boolean parallel) throws IOException {
+        SegmentIndex segment = SegmentIndex.open(file);
+        if (segment != null) {
+            try {
+                return new Segment(0, segment, FileLines.open(file, segment.lineStarts()));
+            } catch (IOException e) {
+                segment.close();
+                throw e;
             }
         }
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        FileLines lines = FileLines.open(file);
+        Segment built = buildIndex(lines, parallel);
+        try {
+            SegmentIndex.write(file, size, modified, lines.starts(), built.index);
+        } catch (IOException | RuntimeException e) {
+            lines.close();
+            throw e;
+        }
+        return built;
     }
 
     private int menu() {
@@ -101,17 +1530,78 @@ public class Main {
     private void find() {
         Strategy strategy = askStrategy();
         System.out.println("Enter a name or email to search all suitable people.");
-        String[] queries = SCANNER.nextLine().toLowerCase().strip().split("\\s+");
-        Set<Integer> res = strategy.find(this, queries);
-        if (!res.isEmpty()) {
-            for (int i : res) {
-                System.out.println(lines.get(i));
+        String[] queries = parseQueries(SCANNER.nextLine());
+        Snapshot snapshot = live.snapshot();
+        PrimitiveIterator.OfInt res = search(snapshot, strategy, queries).iterator();
+        if (res.hasNext()) {
+            while (res.hasNext()) {
+                System.out.println(snapshot.get(res.nextInt()));
             }
         } else {
             System.out.println("No matching people found.");
         }
     }
 
+    private static String[] parseQueries(String input) {
+        return input.toLowerCase().strip().split("\\s+");
+    }
+
+    private IntStream search(Snapshot snapshot, Strategy strategy, String[] queries) {
+        if (cache == null) {
+            return strategy.find(snapshot, queries);
+        }
+        return Arrays.stream(cache.get(snapshot, QueryCache.key(strategy.name(), queries),
+                () -> strategy.find(snapshot, queries).toArray()));
+    }
+
+    /* Answers the "STRATEGY<TAB>terms" records of the queries file, a chunk of them at a time in parallel.
+     * Every matching line is written as "query number<TAB>line number<TAB>line", in query order. */
+    private void batch(String queriesFile, String outFile) {
+        long started = System.nanoTime();
+        long queryCount = 0;
+        long lineCount = 0;
+        try (var in = Files.newBufferedReader(Paths.get(queriesFile));
+             var out = Files.newBufferedWriter(Paths.get(outFile))) {
+            List<String> chunk = new ArrayList<>(BATCH_SIZE);
+            String record;
+            do {
+                record = in.readLine();
+                if (record != null) chunk.add(record);
+                if (chunk.size() == BATCH_SIZE || record == null && !chunk.isEmpty()) {
+                    Snapshot snapshot = live.snapshot();
+                    long first = queryCount + 1;
+                    List<int[]> results = IntStream.range(0, chunk.size()).parallel()
+                            .mapToObj(i -> batchQuery(snapshot, first + i, chunk.get(i)))
+                            .collect(Collectors.toList());
+                    for (int i = 0; i < results.size(); i++) {
+                        for (int line : results.get(i)) {
+                            out.write((first + i) + "\t" + line + "\t" + snapshot.get(line));
+                            out.newLine();
+                        }
+                        lineCount += results.get(i).length;
+                    }
+                    queryCount += chunk.size();
+                    chunk.clear();
+                }
+            } while (record != null);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.format("%d queries answered with %d lines in %d ms%n",
+                queryCount, lineCount, (System.nanoTime() - started) / 1_000_000);
+    }
+
+    private int[] batchQuery(Snapshot snapshot, long id, String record) {
+        String[] fields = record.split("\t", 2);
+        try {
+            return search(snapshot, Strategy.valueOf(fields[0].strip()),
+                    parseQueries(fields.length > 1 ? fields[1] : "")).toArray();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Query " + id + ": unknown strategy \"" + fields[0] + "\", skipped");
+            return Index.EMPTY;
+        }
+    }
+
     private Strategy askStrategy() {
         while (true) {
             System.out.println("\nSelect a matching strategy: " + Strategy.listAvailable());
@@ -126,12 +1616,325 @@ public class Main {
 
     private void print() {
         System.out.println("=== List of people ===");
-        for (var line : lines) System.out.println(line);
+        live.snapshot().forEach((line, i) -> System.out.println(line));
+    }
+
+    /* Reads the data file and builds a new live index over it, the current one stays if that fails */
+    private void load(String[] args) throws IOException {
+        Path file = Paths.get(args[findPos(args, "--data") + 1]);
+        boolean parallel = findPos(args, "--parallel") > -1;
+        Segment base;
+        try {
+            base = findPos(args, "--segment") > -1
+                    ? loadSegment(file, parallel)
+                    : readData(file, findPos(args, "--stream") > -1, parallel);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        LiveIndex previous = live;
+        live = new LiveIndex(base.index, base.lines);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /* Serves the index over HTTP, every request on its own thread against the snapshot current when it came,
+     * and answers 405 to a request with another method than the one given here:
+     * GET /search?strategy=ALL&q=words answers "line number<TAB>line" lines,
+     * POST /add with one record per body line answers the number of the first added line,
+     * POST /delete?line=n deletes a line, POST /reload rebuilds the index from the data file in the
+     * background and swaps it in when ready, dropping records added since, or keeps the current one if the
+     * file can't be read, GET /stats shows queries per second and latency percentiles per strategy
+     * and how many reloads succeeded and failed. */
+    private void serve(int port, String[] args) {
+        Map<Strategy, LatencyHistogram> latencies = new EnumMap<>(Strategy.class);
+        for (Strategy strategy : Strategy.values()) {
+            latencies.put(strategy, new LatencyHistogram());
+        }
+        ExecutorService reloader = Executors.newSingleThreadExecutor();
+        LongAdder reloads = new LongAdder();
+        LongAdder failedReloads = new LongAdder();
+        long started = System.nanoTime();
+        HttpServer server;
+        try {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        server.setExecutor(requestExecutor());
+        server.createContext("/search", exchange -> {
+            if (!allow(exchange, "GET")) return;
+            Map<String, String> params = params(exchange);
+            Strategy strategy;
+            try {
+                strategy = Strategy.valueOf(params.getOrDefault("strategy", "ALL"));
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, "Unknown strategy: " + params.get("strategy"));
+                return;
+            }
+            long start = System.nanoTime();
+            LiveIndex current = retainLive();
+            try {
+                Snapshot snapshot = current.snapshot();
+                int[] res = search(snapshot, strategy, parseQueries(params.getOrDefault("q", ""))).toArray();
+                latencies.get(strategy).record(System.nanoTime() - start);
+                exchange.sendResponseHeaders(200, 0);
+                try (var out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(),
+                        StandardCharsets.UTF_8))) {
+                    for (int line : res) {
+                        out.write(line + "\t" + snapshot.get(line) + "\n");
+                    }
+                }
+            } finally {
+                current.release();
+            }
+        });
+        server.createContext("/add", exchange -> {
+            if (!allow(exchange, "POST")) return;
+            List<String> records = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)
+                    .lines().collect(Collectors.toList());
+            respond(exchange, 200, records.isEmpty() ? "No records" : String.valueOf(live.add(records)));
+        });
+        server.createContext("/delete", exchange -> {
+            if (!allow(exchange, "POST")) return;
+            try {
+                boolean deleted = live.delete(Integer.parseInt(params(exchange).getOrDefault("line", "")));
+                respond(exchange, deleted ? 200 : 404, deleted ? "Deleted" : "No such line");
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, "Bad line number");
+            }
+        });
+        server.createContext("/reload", exchange -> {
+            if (!allow(exchange, "POST")) return;
+            reloader.execute(() -> {
+                try {
+                    load(args);
+                    reloads.increment();
+                } catch (IOException e) {
+                    failedReloads.increment();
+                    System.err.println("Reload failed, still serving the previous index: " + e);
+                }
+            });
+            respond(exchange, 202, "Reloading");
+        });
+        server.createContext("/stats", exchange -> {
+            if (!allow(exchange, "GET")) return;
+            double seconds = (System.nanoTime() - started) / 1e9;
+            StringBuilder stats = new StringBuilder(String.format("Uptime %.1f s, %d lines%n",
+                    seconds, live.snapshot().size()));
+            latencies.forEach((strategy, latency) -> stats.append(String.format(
+                    "%s: %d queries, %.1f qps, p50 %.3f ms, p99 %.3f ms%n", strategy, latency.count(),
+                    latency.count() / seconds, latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3)));
+            stats.append(String.format("Reloads: %d done, %d failed%n", reloads.sum(), failedReloads.sum()));
+            if (cache != null) {
+                stats.append(cache.stats()).append('\n');
+            }
+            respond(exchange, 200, stats.toString());
+        });
+        server.start();
+        System.out.println("Serving on port " + server.getAddress().getPort());
+    }
+
+    /* The live index, retained so that a reload swapping in another one leaves its files open until released */
+    private LiveIndex retainLive() {
+        while (true) {
+            LiveIndex current = live;
+            if (current.retain()) return current;
+        }
+    }
+
+    /* One virtual thread per request where the runtime has them, else a cached thread pool */
+    private static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static Map<String, String> params(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                String[] pair = param.split("=", 2);
+                params.put(URLDecoder.decode(pair[0], StandardCharsets.UTF_8),
+                        pair.length > 1 ? URLDecoder.decode(pair[1], StandardCharsets.UTF_8) : "");
+            }
+        }
+        return params;
+    }
+
+    /* Answers 405 and returns false unless the request has the method */
+    private static boolean allow(HttpExchange exchange, String method) throws IOException {
+        if (method.equals(exchange.getRequestMethod())) return true;
+        exchange.getResponseHeaders().set("Allow", method);
+        respond(exchange, 405, "Use " + method);
+        return false;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (var out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /* Benchmarks the index builders and every strategy on a generated people directory
+     * and saves the results as JSON. Words are drawn from Zipf distributions with the given skew,
+     * so a higher skew makes the common names and mail domains more common. */
+    private static void bench(String resultsFile, int lineCount, double skew) {
+        Random random = new Random(42);
+        Zipf firstNames = new Zipf(5_000, skew, random);
+        Zipf lastNames = new Zipf(50_000, skew, random);
+        Zipf domains = new Zipf(200, skew, random);
+        List<String> people = new ArrayList<>(lineCount);
+        for (int i = 0; i < lineCount; i++) {
+            String first = "first" + firstNames.next();
+            String last = "last" + lastNames.next();
+            people.add(random.nextInt(3) == 0 ? first + " " + last
+                    : first + " " + last + " " + first + i + "@domain" + domains.next() + ".com");
+        }
+        Lines lines = new ListLines(people);
+        StringBuilder json = new StringBuilder(String.format(Locale.ROOT,
+                "{\"lines\": %d, \"skew\": %.2f, \"cores\": %d, \"build\": [",
+                lineCount, skew, Runtime.getRuntime().availableProcessors()));
+        Index index = null;
+        for (boolean parallel : new boolean[]{false, true}) {
+            long nanos = 0;
+            long bytes = 0;
+            for (int i = -BENCH_WARMUP; i < BENCH_ITERATIONS; i++) {
+                long allocated = allocatedBytes();
+                long start = System.nanoTime();
+                index = parallel ? MemoryIndex.buildParallel(lines) : MemoryIndex.build(lines);
+                if (i >= 0) {
+                    nanos += System.nanoTime() - start;
+                    bytes += allocatedBytes() - allocated;
+                }
+            }
+            double ms = nanos / 1e6 / BENCH_ITERATIONS;
+            json.append(String.format(Locale.ROOT, "%s{\"mode\": \"%s\", \"msPerOp\": %.3f, "
+                            + "\"linesPerSecond\": %.0f, \"bytesPerOp\": %d}", parallel ? ", " : "",
+                    parallel ? "parallel" : "sequential", ms, lineCount / ms * 1000, bytes / BENCH_ITERATIONS));
+            System.out.format(Locale.ROOT, "build %-10s %10.3f ms/op%n", parallel ? "parallel" : "sequential", ms);
+        }
+        json.append("], \"strategies\": [");
+        List<String[]> queries = new ArrayList<>(BENCH_QUERIES);
+        for (int i = 0; i < BENCH_QUERIES; i++) {
+            String[] query = new String[1 + random.nextInt(3)];
+            for (int j = 0; j < query.length; j++) {
+                query[j] = random.nextBoolean() ? "first" + firstNames.next()
+                        : random.nextBoolean() ? "last" + lastNames.next() : "domain" + domains.next() + ".com";
+            }
+            queries.add(query);
+        }
+        Snapshot snapshot = new LiveIndex(index, lines).snapshot();
+        long[] nanos = new long[BENCH_QUERIES * BENCH_ITERATIONS];
+        for (Strategy strategy : Strategy.values()) {
+            long bytes = 0;
+            long checksum = 0;
+            for (int i = -BENCH_WARMUP; i < BENCH_ITERATIONS; i++) {
+                long allocated = allocatedBytes();
+                for (int q = 0; q < BENCH_QUERIES; q++) {
+                    long start = System.nanoTime();
+                    checksum += strategy.find(snapshot, queries.get(q)).sum();
+                    if (i >= 0) nanos[i * BENCH_QUERIES + q] = System.nanoTime() - start;
+                }
+                if (i >= 0) bytes += allocatedBytes() - allocated;
+            }
+            double average = Arrays.stream(nanos).average().orElse(0) / 1e3;
+            Arrays.sort(nanos);
+            json.append(String.format(Locale.ROOT, "%s{\"strategy\": \"%s\", \"usPerOp\": %.3f, "
+                            + "\"p50Us\": %.3f, \"p99Us\": %.3f, \"bytesPerOp\": %d, \"checksum\": %d}",
+                    strategy.ordinal() > 0 ? ", " : "", strategy, average, nanos[nanos.length / 2] / 1e3,
+                    nanos[nanos.length * 99 / 100] / 1e3, bytes / nanos.length, checksum));
+            System.out.format(Locale.ROOT, "query %-5s %10.3f us/op %12d B/op%n",
+                    strategy, average, bytes / nanos.length);
+        }
+        json.append("]}\n");
+        try {
+            Files.writeString(Paths.get(resultsFile), json);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* Bytes allocated so far by all live threads, the fork/join workers included */
+    private static long allocatedBytes() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return Arrays.stream(threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+                .filter(bytes -> bytes > 0).sum();
+    }
+
+    /* Draws ranks 1..n, rank r with probability proportional to 1 / r^skew */
+    private static final class Zipf {
+        private final double[] cumulative;
+        private final Random random;
+
+        Zipf(int n, double skew, Random random) {
+            this.cumulative = new double[n];
+            this.random = random;
+            double sum = 0;
+            for (int r = 0; r < n; r++) {
+                sum += 1 / Math.pow(r + 1, skew);
+                cumulative[r] = sum;
+            }
+        }
+
+        int next() {
+            int i = Arrays.binarySearch(cumulative, random.nextDouble() * cumulative[cumulative.length - 1]);
+            return (i < 0 ? -i - 1 : i) + 1;
+        }
     }
 
+    private static int findPos(String[] args, String option) {
+        for (int i = 0; i < args.length; i++) {
+            if (option.equals(args[i])) return i;
+        }
+        return -1;
+    }
+
+    /* Options: --data file [--stream] [--parallel] [--segment] [--cache lines]
+     *          [--batch queries --out results | --serve port]
+     *      or: --bench results [--lines n] [--skew s]
+     * --stream keeps the lines in the file instead of the heap,
+     * --parallel builds the index on all cores,
+     * --segment saves the index next to the data file and maps it on later starts (implies --stream),
+     * --cache keeps the results of recent queries, up to the given number of lines in total,
+     * --batch queries --out results answers a file of queries instead of showing the menu,
+     * --serve port answers queries over HTTP instead of showing the menu,
+     * --bench saves build and query timings on n generated lines (a million by default) to the results file */
     public void start(String[] args) {
-        readData(args[1]);
-        buildIndex();
+        int ixBench = findPos(args, "--bench");
+        if (ixBench > -1) {
+            int ixLines = findPos(args, "--lines");
+            int ixSkew = findPos(args, "--skew");
+            bench(args[ixBench + 1], ixLines > -1 ? Integer.parseInt(args[ixLines + 1]) : 1_000_000,
+                    ixSkew > -1 ? Double.parseDouble(args[ixSkew + 1]) : 1.0);
+            return;
+        }
+        try {
+            load(args);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        int ixCache = findPos(args, "--cache");
+        if (ixCache > -1) {
+            cache = new QueryCache(Long.parseLong(args[ixCache + 1]));
+        }
+        int ixServe = findPos(args, "--serve");
+        if (ixServe > -1) {
+            serve(Integer.parseInt(args[ixServe + 1]), args);
+            return;
+        }
+        int ixBatch = findPos(args, "--batch");
+        if (ixBatch > -1) {
+            batch(args[ixBatch + 1], args[findPos(args, "--out") + 1]);
+            return;
+        }
         int response;
         while ((response = menu()) != 0) {
             switch (response) {
@@ -143,6 +1946,9 @@ public class Main {
                     break;
             }
         }
+        if (cache != null) {
+            System.out.println("\n" + cache.stats());
+        }
         System.out.println("\nBye!");
     }
 